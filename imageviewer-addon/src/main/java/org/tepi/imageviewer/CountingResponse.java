@@ -0,0 +1,106 @@
+package org.tepi.imageviewer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+
+import javax.servlet.http.Cookie;
+
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinService;
+
+/**
+ * VaadinResponse counting the bytes written to the response body, for
+ * recording the bytes served to the metrics of an ImageViewer.
+ *
+ * @author Teppo Kurki
+ */
+@SuppressWarnings("serial")
+class CountingResponse implements VaadinResponse {
+
+	private final VaadinResponse response;
+	private OutputStream out;
+	private long count;
+
+	CountingResponse(VaadinResponse response) {
+		this.response = response;
+	}
+
+	/**
+	 * Returns the amount of bytes written to the output stream.
+	 */
+	long getCount() {
+		return count;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (out == null) {
+			out = new FilterOutputStream(response.getOutputStream()) {
+				@Override
+				public void write(int b) throws IOException {
+					super.out.write(b);
+					count++;
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					super.out.write(b, off, len);
+					count += len;
+				}
+			};
+		}
+		return out;
+	}
+
+	@Override
+	public void setStatus(int statusCode) {
+		response.setStatus(statusCode);
+	}
+
+	@Override
+	public void setContentType(String contentType) {
+		response.setContentType(contentType);
+	}
+
+	@Override
+	public void setHeader(String name, String value) {
+		response.setHeader(name, value);
+	}
+
+	@Override
+	public void setDateHeader(String name, long timestamp) {
+		response.setDateHeader(name, timestamp);
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		return response.getWriter();
+	}
+
+	@Override
+	public void setCacheTime(long milliseconds) {
+		response.setCacheTime(milliseconds);
+	}
+
+	@Override
+	public void sendError(int errorCode, String message) throws IOException {
+		response.sendError(errorCode, message);
+	}
+
+	@Override
+	public VaadinService getService() {
+		return response.getService();
+	}
+
+	@Override
+	public void addCookie(Cookie cookie) {
+		response.addCookie(cookie);
+	}
+
+	@Override
+	public void setContentLength(int len) {
+		response.setContentLength(len);
+	}
+}
@@ -0,0 +1,37 @@
+package org.tepi.imageviewer;
+
+import java.io.Serializable;
+import java.util.List;
+
+import com.vaadin.server.Resource;
+
+/**
+ * ImageDataProvider supplies the images of an {@link ImageViewer} lazily. The
+ * viewer only asks for the images that are inside the window around the
+ * currently centered image, so the full set of images never needs to be held
+ * in memory or sent to the client.
+ *
+ * @author Teppo Kurki
+ */
+public interface ImageDataProvider extends Serializable {
+
+	/**
+	 * Returns the total amount of images available from this provider.
+	 *
+	 * @return Number of images
+	 */
+	public int size();
+
+	/**
+	 * Fetches a range of images.
+	 *
+	 * @param offset
+	 *            Index of the first image to fetch
+	 * @param limit
+	 *            Number of images to fetch. The range
+	 *            <code>offset .. offset + limit - 1</code> is always within
+	 *            the bounds given by {@link #size()}.
+	 * @return List of exactly <code>limit</code> images as resources
+	 */
+	public List<? extends Resource> fetch(int offset, int limit);
+}
@@ -0,0 +1,391 @@
+package org.tepi.imageviewer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+import org.tepi.imageviewer.metrics.ImageViewerMetrics;
+
+import com.vaadin.server.ConnectorResource;
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.RequestHandler;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.server.VaadinServletRequest;
+import com.vaadin.server.VaadinServletResponse;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+/**
+ * Request handler serving the images of the ImageViewers of a session without
+ * holding the session lock. Each image is registered with a token, and a
+ * request is served only if the token is registered and the ImageViewer it
+ * was registered for is still attached to the session of the request. When
+ * the servlet supports asynchronous processing, the bytes are written with
+ * non-blocking I/O so slow clients do not hold a request thread.
+ * <p>
+ * The token of an image with a known version is derived from the version, so
+ * the URL of the image stays the same whenever it is registered again and
+ * changes when its content changes. Such images are served with a strong
+ * ETag and as immutable, and conditional requests are answered with 304 Not
+ * Modified without opening the image. Images without a version get a random
+ * token and the caching headers of their DownloadStream.
+ *
+ * @author Teppo Kurki
+ */
+@SuppressWarnings("serial")
+class ImageRequestHandler implements RequestHandler {
+
+	/** Path of the image requests, relative to the application */
+	static final String PATH = "APP/imageviewer/";
+
+	/** Time after which an asynchronous write is abandoned, in milliseconds */
+	private static final long ASYNC_TIMEOUT = 5 * 60 * 1000;
+
+	private static final int BUFFER_SIZE = 32 * 1024;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	/** Cache-Control header of versioned images */
+	static final String IMMUTABLE = "public, max-age=31536000, immutable";
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	/**
+	 * Returns the handler of the given session, adding one if the session
+	 * does not have it yet. Must be called while holding the session lock.
+	 */
+	static ImageRequestHandler get(VaadinSession session) {
+		for (RequestHandler handler : session.getRequestHandlers()) {
+			if (handler instanceof ImageRequestHandler) {
+				return (ImageRequestHandler) handler;
+			}
+		}
+		ImageRequestHandler handler = new ImageRequestHandler();
+		session.addRequestHandler(handler);
+		return handler;
+	}
+
+	/**
+	 * Registers an image to be served. An image with the same version may be
+	 * registered several times, and is served until each registration has
+	 * been unregistered. Must be called while holding the session lock.
+	 *
+	 * @param viewer
+	 *            The ImageViewer showing the image
+	 * @param resource
+	 *            The image
+	 * @param version
+	 *            Version identifying the content of the image, or null if
+	 *            unknown
+	 * @param lastModified
+	 *            Modification time of the image, or 0 if unknown
+	 * @param metricsName
+	 *            Name the image is recorded under in the metrics
+	 * @param width
+	 *            Width tier of the image, or 0 for the original
+	 * @return Token of the image, for unregistering it
+	 */
+	String register(ImageViewer viewer, ConnectorResource resource, String version, long lastModified,
+			String metricsName, int width) {
+		String token = version == null ? new BigInteger(130, RANDOM).toString(32) : deriveToken(version);
+		Entry entry = entries.get(token);
+		if (entry == null) {
+			entry = new Entry(resource, version != null, lastModified, metricsName, width);
+			entries.put(token, entry);
+		}
+		entry.viewers.add(viewer);
+		return token;
+	}
+
+	void unregister(String token, ImageViewer viewer) {
+		Entry entry = entries.get(token);
+		if (entry != null && entry.viewers.remove(viewer) && entry.viewers.isEmpty()) {
+			entries.remove(token);
+		}
+	}
+
+	/**
+	 * Derives the token of a versioned image from a hash of the version, so
+	 * the URL stays the same across restarts and cluster nodes. The token
+	 * needs no secret, since only the tokens registered in the session of a
+	 * request are served.
+	 */
+	private static String deriveToken(String version) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(version.getBytes(StandardCharsets.UTF_8));
+			return new BigInteger(1, Arrays.copyOf(digest, 16)).toString(32);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Returns the URL the image registered with the given token is served
+	 * from. The file name is only informative.
+	 */
+	static String getUrl(String token, ConnectorResource resource) {
+		String fileName = resource.getFilename();
+		return "app://" + PATH + token + "/" + (fileName == null ? "" : fileName);
+	}
+
+	@Override
+	public boolean handleRequest(VaadinSession session, VaadinRequest request, VaadinResponse response)
+			throws IOException {
+		String path = request.getPathInfo();
+		if (path == null || !path.startsWith("/" + PATH)) {
+			return false;
+		}
+		String token = path.substring(PATH.length() + 1);
+		int slash = token.indexOf('/');
+		if (slash != -1) {
+			token = token.substring(0, slash);
+		}
+		Entry entry = entries.get(token);
+		ImageViewer viewer = entry != null ? entry.getViewer(session) : null;
+		if (viewer == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Image not found");
+			return true;
+		}
+		long start = System.nanoTime();
+		ImageViewerMetrics metrics = viewer.getMetrics();
+		String etag = "\"" + token + "\"";
+		if (entry.versioned) {
+			if (isNotModified(request, etag, entry.lastModified)) {
+				metrics.cacheHit("http");
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				response.setHeader("ETag", etag);
+				response.setHeader("Cache-Control", IMMUTABLE);
+				return true;
+			}
+			metrics.cacheMiss("http");
+		}
+		DownloadStream stream = entry.resource.getStream();
+		if (stream == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND, "Image not found");
+			return true;
+		}
+		if (entry.versioned) {
+			/* Parameters are written after the cache time, so these take precedence */
+			stream.setParameter("ETag", etag);
+			stream.setParameter("Cache-Control", IMMUTABLE);
+			if (entry.lastModified > 0) {
+				stream.setParameter("Last-Modified", formatDate(entry.lastModified));
+			}
+		}
+		if (stream.getParameter("Location") == null && request instanceof VaadinServletRequest
+				&& response instanceof VaadinServletResponse
+				&& ((VaadinServletRequest) request).isAsyncSupported()) {
+			InputStream in = stream.getStream();
+			if (in == null) {
+				response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+				return true;
+			}
+			writeHeaders(stream, response);
+			AsyncContext async = ((VaadinServletRequest) request).startAsync();
+			async.setTimeout(ASYNC_TIMEOUT);
+			ServletOutputStream out = ((VaadinServletResponse) response).getHttpServletResponse().getOutputStream();
+			AsyncWriter writer = new AsyncWriter(async, out, in, viewer, entry, start);
+			async.addListener(writer);
+			out.setWriteListener(writer);
+		} else if (metrics != ImageViewerMetrics.NONE) {
+			CountingResponse counting = new CountingResponse(response);
+			stream.writeResponse(request, counting);
+			metrics.imageServed(viewer, entry.metricsName, entry.width, counting.getCount(),
+					System.nanoTime() - start);
+		} else {
+			stream.writeResponse(request, response);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the validators of a conditional request match the
+	 * image. If-Modified-Since is only checked when the request has no
+	 * If-None-Match, as required by RFC 7232.
+	 */
+	private static boolean isNotModified(VaadinRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		if (lastModified > 0 && request.getHeader("If-Modified-Since") != null) {
+			try {
+				long since = request.getDateHeader("If-Modified-Since");
+				return since != -1 && lastModified / 1000 <= since / 1000;
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+		}
+		return false;
+	}
+
+	private static String formatDate(long time) {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format.format(new Date(time));
+	}
+
+	/**
+	 * Sets the response headers in the same way as
+	 * {@link DownloadStream#writeResponse(VaadinRequest, VaadinResponse)}.
+	 */
+	private static void writeHeaders(DownloadStream stream, VaadinResponse response) {
+		response.setContentType(stream.getContentType());
+		response.setCacheTime(stream.getCacheTime());
+		Iterator<String> names = stream.getParameterNames();
+		while (names != null && names.hasNext()) {
+			String name = names.next();
+			response.setHeader(name, stream.getParameter(name));
+		}
+		if (stream.getParameter(DownloadStream.CONTENT_DISPOSITION) == null && stream.getFileName() != null) {
+			response.setHeader(DownloadStream.CONTENT_DISPOSITION,
+					DownloadStream.getContentDispositionFilename(stream.getFileName()));
+		}
+	}
+
+	/**
+	 * Copies the image to the response whenever the container reports that
+	 * the response can take more bytes without blocking.
+	 */
+	private static class AsyncWriter implements WriteListener, AsyncListener {
+
+		private final AsyncContext async;
+		private final ServletOutputStream out;
+		private final InputStream in;
+		private final byte[] buffer = new byte[BUFFER_SIZE];
+
+		private final ImageViewer viewer;
+		private final Entry entry;
+		private final long start;
+		private long written;
+
+		private AsyncWriter(AsyncContext async, ServletOutputStream out, InputStream in, ImageViewer viewer,
+				Entry entry, long start) {
+			this.async = async;
+			this.out = out;
+			this.in = in;
+			this.viewer = viewer;
+			this.entry = entry;
+			this.start = start;
+		}
+
+		@Override
+		public void onWritePossible() throws IOException {
+			while (out.isReady()) {
+				int read = in.read(buffer);
+				if (read == -1) {
+					in.close();
+					async.complete();
+					viewer.getMetrics().imageServed(viewer, entry.metricsName, entry.width, written,
+							System.nanoTime() - start);
+					return;
+				}
+				out.write(buffer, 0, read);
+				written += read;
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			getLogger().log(Level.FINE, "Writing an image failed", t);
+			close();
+			async.complete();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+
+		private void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				getLogger().log(Level.FINE, "Closing an image stream failed", e);
+			}
+		}
+	}
+
+	private static class Entry implements Serializable {
+		private final ConnectorResource resource;
+		private final boolean versioned;
+		private final long lastModified;
+		private final String metricsName;
+		private final int width;
+
+		/* The viewers the image is registered for, once per registration */
+		private final List<ImageViewer> viewers = new CopyOnWriteArrayList<ImageViewer>();
+
+		private Entry(ConnectorResource resource, boolean versioned, long lastModified, String metricsName,
+				int width) {
+			this.resource = resource;
+			this.versioned = versioned;
+			this.lastModified = lastModified;
+			this.metricsName = metricsName;
+			this.width = width;
+		}
+
+		/**
+		 * Returns a viewer the image is registered for that is attached to
+		 * the given session, or null if there is none.
+		 */
+		private ImageViewer getViewer(VaadinSession session) {
+			for (ImageViewer viewer : viewers) {
+				UI ui = viewer.getUI();
+				if (ui != null && ui.getSession() == session) {
+					return viewer;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static Logger getLogger() {
+		return Logger.getLogger(ImageRequestHandler.class.getName());
+	}
+}
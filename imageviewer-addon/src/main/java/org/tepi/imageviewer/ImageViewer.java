@@ -1,15 +1,39 @@
 package org.tepi.imageviewer;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.EventObject;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.tepi.imageviewer.client.ImageViewerServerRpc;
 import org.tepi.imageviewer.client.ImageViewerState;
+import org.tepi.imageviewer.client.TelemetryReport;
+import org.tepi.imageviewer.metrics.ImageViewerMetrics;
+import org.tepi.imageviewer.metrics.InMemoryImageViewerMetrics;
+import org.tepi.imageviewer.rendition.RenditionPregenerator;
+import org.tepi.imageviewer.rendition.RenditionResource;
+import org.tepi.imageviewer.rendition.RenditionService;
 
+import com.vaadin.server.ConnectorResource;
+import com.vaadin.server.ExternalResource;
+import com.vaadin.server.FileResource;
 import com.vaadin.server.Resource;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+import com.vaadin.shared.Registration;
 import com.vaadin.ui.AbstractComponent;
 import com.vaadin.ui.Component.Focusable;
 
@@ -39,6 +63,16 @@ import com.vaadin.ui.Component.Focusable;
  * 
  * - Providing the images as Vaadin Resources
  * 
+ * - Providing large sets of images lazily with an {@link ImageDataProvider}
+ * 
+ * - Serving each image scaled to the size it is shown in with a
+ * {@link RenditionService}
+ * 
+ * - Recording server side costs with {@link ImageViewerMetrics}
+ * 
+ * - Reporting the performance experienced in the browser with
+ * {@link TelemetryListener}s
+ * 
  * @author Teppo Kurki
  */
 @SuppressWarnings("serial")
@@ -47,23 +81,136 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 	/** List of resources (images) set to display in this components */
 	public List<? extends Resource> images = new ArrayList<Resource>();
 
+	/** Provider of the images displayed in this component */
+	private ImageDataProvider dataProvider;
+
+	/**
+	 * Amount of images registered on each side of the window in addition to
+	 * the visible ones
+	 */
+	private int prefetchMargin = 2;
+
+	/**
+	 * Highest rate of moves per second expected from the user, e.g. by holding
+	 * an arrow key down. Used for sizing the window so that it covers the moves
+	 * the client may make before it sends the latest one to the server.
+	 */
+	private static final int MAX_NAVIGATION_RATE = 30;
+
+	/** Images currently registered as resources, mapped by image index */
+	private final Map<Integer, WindowEntry> window = new HashMap<Integer, WindowEntry>();
+
+	/** Service producing scaled renditions of the images, or null */
+	private RenditionService renditionService;
+
+	/** Widths of the rendition tiers, in ascending order */
+	private int[] renditionWidths = { 128, 256, 512, 1024 };
+
+	/** Pregenerator rendering the renditions of new images, or null */
+	private transient RenditionPregenerator renditionPregenerator;
+
+	/** Listener notified of the progress of the pregeneration, or null */
+	private transient RenditionPregenerator.ProgressListener pregenerationListener;
+
+	/** Pregeneration of the renditions of the current images, or null */
+	private transient RenditionPregenerator.Job pregeneration;
+
+	/** True if the images are served without the session lock */
+	private boolean lockFreeServing;
+
+	/** Tokens of the images served without the session lock, by resource key */
+	private final Map<String, String> imageTokens = new HashMap<String, String>();
+
+	/** Identifier given to the next image registered as a resource */
+	private int nextImageId;
+
 	/** List of registered image selection listeners */
-	private LinkedList<ImageSelectionListener> listeners;
+	private final List<ImageSelectionListener> listeners = new CopyOnWriteArrayList<ImageSelectionListener>();
+
+	/** Executor the listeners are notified through, or null to notify them at once */
+	private transient Executor listenerExecutor;
+
+	/** Latest event not yet dispatched through the executor */
+	private final AtomicReference<ImageSelectedEvent> pendingEvent = new AtomicReference<ImageSelectedEvent>();
+
+	/** True while a dispatch of the pending events is queued or running */
+	private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+
+	/** List of registered telemetry listeners */
+	private final List<TelemetryListener> telemetryListeners = new CopyOnWriteArrayList<TelemetryListener>();
+
+	/** Metrics the costs of this ImageViewer are recorded to */
+	private ImageViewerMetrics metrics = ImageViewerMetrics.NONE;
 
 	/** Server RPC instance */
 	private ImageViewerServerRpc rpc = new ImageViewerServerRpc() {
 
 		@Override
-		public void centerImageSelected(int newCenterImageIndex) {
-			setCenterImageIndex(newCenterImageIndex);
-			if (listeners != null) {
-				for (ImageSelectionListener l : listeners) {
-					l.imageSelected(new ImageSelectedEvent(this, newCenterImageIndex));
+		public void centerImageSelected(int newCenterImageIndex, int sequence) {
+			metrics.rpcReceived(ImageViewer.this);
+			ImageViewerState state = getState(false);
+			if (newCenterImageIndex < 0 || newCenterImageIndex > state.imageCount - 1) {
+				/* Move made before the images were changed */
+				return;
+			}
+			boolean changed = state.centerImageIndex != newCenterImageIndex;
+			/*
+			 * The client already shows the image, so the move is acknowledged
+			 * without marking the state dirty. It is sent along with the next
+			 * change, e.g. when the window is moved below.
+			 */
+			state.centerImageIndex = newCenterImageIndex;
+			state.centerImageSequence = sequence;
+			updateWindow();
+			if (changed) {
+				fireImageSelected(newCenterImageIndex);
+			}
+		}
+
+		@Override
+		public void telemetryReported(TelemetryReport report) {
+			if (!isWellFormed(report)) {
+				Logger.getLogger(ImageViewer.class.getName()).log(Level.FINE,
+						"Ignored a malformed telemetry report");
+				return;
+			}
+			TelemetryEvent event = new TelemetryEvent(ImageViewer.this, report);
+			for (TelemetryListener listener : telemetryListeners) {
+				try {
+					listener.telemetryReported(event);
+				} catch (RuntimeException e) {
+					Logger.getLogger(ImageViewer.class.getName()).log(Level.WARNING,
+							"Telemetry listener failed", e);
 				}
 			}
 		}
 	};
 
+	/**
+	 * Returns true if the report sent by the client has histograms matching
+	 * the bounds and no negative values, so the listeners need not check it.
+	 */
+	private static boolean isWellFormed(TelemetryReport report) {
+		return report != null && report.period >= 0 && report.failedLoads >= 0 && report.animations >= 0
+				&& report.frames >= 0 && report.droppedFrames >= 0
+				&& isWellFormed(report.loadLatency, TelemetryReport.TIME_BOUNDS)
+				&& isWellFormed(report.decodeTime, TelemetryReport.TIME_BOUNDS)
+				&& isWellFormed(report.firstPaint, TelemetryReport.TIME_BOUNDS)
+				&& isWellFormed(report.queueDepth, TelemetryReport.DEPTH_BOUNDS);
+	}
+
+	private static boolean isWellFormed(int[] histogram, int[] bounds) {
+		if (histogram == null || histogram.length != bounds.length + 1) {
+			return false;
+		}
+		for (int count : histogram) {
+			if (count < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * Default constructor of ImageViewer.
 	 * 
@@ -82,6 +229,7 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 	 *            List of images as resources
 	 */
 	public ImageViewer(List<? extends Resource> images) {
+		this();
 		setImages(images);
 	}
 
@@ -90,9 +238,15 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 		return (ImageViewerState) super.getState();
 	}
 
+	@Override
+	protected ImageViewerState getState(boolean markAsDirty) {
+		return (ImageViewerState) super.getState(markAsDirty);
+	}
+
 	/**
 	 * Returns (an unmodifiable) copy of the list of images currently set to
-	 * this ImageViewer.
+	 * this ImageViewer. If the images are provided by an
+	 * {@link ImageDataProvider}, the returned list is empty.
 	 * 
 	 * @return List of Resource instances
 	 */
@@ -101,21 +255,649 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 	}
 
 	/**
-	 * Sets the given set of images to be displayed by this ImageViewer.
+	 * Sets the given set of images to be displayed by this ImageViewer. Only
+	 * the images around the centered image are sent to the client at a time.
 	 * 
 	 * @param images
 	 *            List of Resources
 	 */
 	public void setImages(List<? extends Resource> images) {
-		if (images != null) {
-			getState().imageCount = images.size();
-			for (int i = 0; i < images.size(); i++) {
-				setResource("image-" + i, images.get(i));
-			}
+		long start = System.nanoTime();
+		List<Resource> list = images != null ? new ArrayList<Resource>(images) : new ArrayList<Resource>();
+		setDataProvider(new ListDataProvider(list));
+		this.images = list;
+		pregenerateRenditions();
+		metrics.imagesSet(this, list.size(), System.nanoTime() - start);
+	}
+
+	/**
+	 * Appends an image to the end of the list of images. Only the change is
+	 * sent to the client; the centered image is kept.
+	 * 
+	 * @param image
+	 *            Image to add
+	 */
+	public void addImage(Resource image) {
+		insertImage(getImageList().size(), image);
+	}
+
+	/**
+	 * Inserts an image to the given position in the list of images. Only the
+	 * change is sent to the client; the centered image is kept.
+	 * 
+	 * @param index
+	 *            Index to insert the image to
+	 * @param image
+	 *            Image to insert
+	 */
+	public void insertImage(int index, Resource image) {
+		List<Resource> list = getImageList();
+		list.add(index, image);
+		shiftWindow(index, Integer.MAX_VALUE, 1);
+		if (index <= getState().centerImageIndex && list.size() > 1) {
+			updateCenterImageIndex(getState().centerImageIndex + 1);
+		}
+		getState().imageCount = list.size();
+	}
+
+	/**
+	 * Removes the image at the given position from the list of images. Only
+	 * the change is sent to the client. If the centered image is removed, the
+	 * next image, or the previous one if the last image was removed, will be
+	 * centered and an {@link ImageSelectedEvent} is fired.
+	 * 
+	 * @param index
+	 *            Index of the image to remove
+	 */
+	public void removeImage(int index) {
+		List<Resource> list = getImageList();
+		list.remove(index);
+		WindowEntry removed = window.remove(index);
+		if (removed != null) {
+			unregisterImage(removed);
+		}
+		shiftWindow(index + 1, Integer.MAX_VALUE, -1);
+		int center = getState().centerImageIndex;
+		if (index < center) {
+			updateCenterImageIndex(center - 1);
+		} else if (center > list.size() - 1) {
+			updateCenterImageIndex(Math.max(0, list.size() - 1));
+		}
+		getState().imageCount = list.size();
+		if (index == center && !list.isEmpty()) {
+			fireImageSelected(getState(false).centerImageIndex);
+		}
+	}
+
+	/**
+	 * Moves an image to a new position in the list of images. Only the change
+	 * is sent to the client; the centered image is kept.
+	 * 
+	 * @param fromIndex
+	 *            Current index of the image
+	 * @param toIndex
+	 *            New index of the image
+	 */
+	public void moveImage(int fromIndex, int toIndex) {
+		List<Resource> list = getImageList();
+		if (toIndex < 0 || toIndex > list.size() - 1) {
+			throw new IndexOutOfBoundsException("Index: " + toIndex + ", Size: " + list.size());
+		}
+		list.add(toIndex, list.remove(fromIndex));
+		WindowEntry moved = window.remove(fromIndex);
+		if (fromIndex < toIndex) {
+			shiftWindow(fromIndex + 1, toIndex, -1);
 		} else {
-			getState().imageCount = 0;
+			shiftWindow(toIndex, fromIndex - 1, 1);
+		}
+		if (moved != null) {
+			window.put(toIndex, moved);
+		}
+		int center = getState().centerImageIndex;
+		if (center == fromIndex) {
+			updateCenterImageIndex(toIndex);
+		} else if (fromIndex < center && center <= toIndex) {
+			updateCenterImageIndex(center - 1);
+		} else if (toIndex <= center && center < fromIndex) {
+			updateCenterImageIndex(center + 1);
+		}
+		markAsDirty();
+	}
+
+	/**
+	 * Returns the modifiable list of images given to {@link #setImages(List)}.
+	 */
+	private List<Resource> getImageList() {
+		if (!(dataProvider instanceof ListDataProvider)) {
+			throw new IllegalStateException("Images can only be modified when they are set with setImages.");
+		}
+		return ((ListDataProvider) dataProvider).images;
+	}
+
+	/**
+	 * Moves the registered images with an index in the given range by the
+	 * given amount, keeping their resources and thus their URLs.
+	 */
+	private void shiftWindow(int fromIndex, int toIndex, int amount) {
+		Map<Integer, WindowEntry> shifted = new HashMap<Integer, WindowEntry>();
+		Iterator<Map.Entry<Integer, WindowEntry>> it = window.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, WindowEntry> entry = it.next();
+			if (entry.getKey() >= fromIndex && entry.getKey() <= toIndex) {
+				shifted.put(entry.getKey() + amount, entry.getValue());
+				it.remove();
+			}
+		}
+		window.putAll(shifted);
+		markAsDirty();
+	}
+
+	/**
+	 * Returns the provider of the images displayed by this ImageViewer.
+	 * 
+	 * @return Image data provider, or null if none is set
+	 */
+	public ImageDataProvider getDataProvider() {
+		return dataProvider;
+	}
+
+	/**
+	 * Sets the provider of the images to be displayed by this ImageViewer.
+	 * Images are fetched from the provider lazily; only the centered image,
+	 * the side images and {@link #getPrefetchMargin()} further images on each
+	 * side are registered and sent to the client at any time.
+	 * 
+	 * @param dataProvider
+	 *            Provider of the images, or null to display no images
+	 */
+	public void setDataProvider(ImageDataProvider dataProvider) {
+		cancelPregeneration();
+		this.dataProvider = dataProvider;
+		this.images = new ArrayList<Resource>();
+		refreshImages();
+	}
+
+	/**
+	 * Re-reads the image count from the data provider and discards all
+	 * fetched images. Call this when the data behind the provider changes. If
+	 * the centered index is past the new end of the images, the last image is
+	 * centered. An {@link ImageSelectedEvent} is fired if a different image
+	 * than before ends up centered.
+	 */
+	public void refreshImages() {
+		int center = getState(false).centerImageIndex;
+		WindowEntry centered = window.get(center);
+		releaseWindow();
+		int count = dataProvider != null ? dataProvider.size() : 0;
+		getState().imageCount = count;
+		if (center > count - 1) {
+			updateCenterImageIndex(Math.max(0, count - 1));
+		}
+		if (centered == null || count == 0) {
+			return;
+		}
+		/* Fetch the new window to compare the centered images */
+		updateWindow();
+		int newCenter = getState(false).centerImageIndex;
+		if (newCenter != center || !centered.resource.equals(window.get(newCenter).resource)) {
+			fireImageSelected(newCenter);
+		}
+	}
+
+	/**
+	 * Returns the amount of images kept registered on each side of the
+	 * visible images.
+	 * 
+	 * @return Prefetch margin as number of images
+	 */
+	public int getPrefetchMargin() {
+		return prefetchMargin;
+	}
+
+	/**
+	 * Sets the amount of images kept registered on each side of the visible
+	 * images. A larger margin allows the client to move further without
+	 * waiting for the server, at the cost of more resources being sent.
+	 * 
+	 * @param prefetchMargin
+	 *            Prefetch margin as number of images. Value given must be 0 or
+	 *            over.
+	 */
+	public void setPrefetchMargin(int prefetchMargin) {
+		if (prefetchMargin < 0) {
+			throw new IllegalArgumentException("Minimum allowed value is 0.");
+		}
+		this.prefetchMargin = prefetchMargin;
+		markAsDirty();
+	}
+
+	/**
+	 * Returns the maximum amount of images the client prefetches ahead of the
+	 * direction of navigation.
+	 * 
+	 * @return Prefetch budget as number of images
+	 */
+	public int getPrefetchBudget() {
+		return getState(false).prefetchBudget;
+	}
+
+	/**
+	 * Sets the maximum amount of images the client prefetches ahead of the
+	 * direction of navigation. The client prefetches more images the faster
+	 * the user moves, up to this amount, and cancels the prefetches when the
+	 * direction is reversed. The images within this amount are kept
+	 * registered even if the prefetch margin is smaller. Default is 4.
+	 * 
+	 * @param prefetchBudget
+	 *            Prefetch budget as number of images, 0 to disable
+	 */
+	public void setPrefetchBudget(int prefetchBudget) {
+		if (prefetchBudget < 0) {
+			throw new IllegalArgumentException("Minimum allowed value is 0.");
+		}
+		getState().prefetchBudget = prefetchBudget;
+	}
+
+	/**
+	 * Returns the metrics the costs of this ImageViewer are recorded to.
+	 * 
+	 * @return Metrics; {@link ImageViewerMetrics#NONE} by default
+	 */
+	public ImageViewerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Sets the metrics the costs of this ImageViewer are recorded to: the
+	 * size and duration of setImages, the moves received from the client, the
+	 * time spent notifying listeners, the images served and the HTTP cache
+	 * hits of versioned images. Set the same instance to a
+	 * {@link org.tepi.imageviewer.rendition.DiskRenditionCache} to record its
+	 * hit ratio as well.
+	 * 
+	 * @param metrics
+	 *            Metrics, e.g. {@link InMemoryImageViewerMetrics}, or null to
+	 *            record nothing
+	 */
+	public void setMetrics(ImageViewerMetrics metrics) {
+		this.metrics = metrics != null ? metrics : ImageViewerMetrics.NONE;
+	}
+
+	@Override
+	public boolean handleConnectorRequest(VaadinRequest request, VaadinResponse response, String path)
+			throws IOException {
+		if (metrics == ImageViewerMetrics.NONE || !path.startsWith("image-")) {
+			return super.handleConnectorRequest(request, response, path);
+		}
+		long start = System.nanoTime();
+		CountingResponse counting = new CountingResponse(response);
+		boolean handled = super.handleConnectorRequest(request, counting, path);
+		if (handled) {
+			int slash = path.indexOf('/');
+			recordImageServed(slash != -1 ? path.substring(0, slash) : path, counting.getCount(),
+					System.nanoTime() - start);
+		}
+		return handled;
+	}
+
+	/**
+	 * Records an image served as a connector resource to the metrics, under
+	 * the metrics name of the image and the width tier given by its key.
+	 */
+	private void recordImageServed(String key, long bytes, long nanos) {
+		String name = key;
+		int width = 0;
+		String[] parts = key.split("-");
+		try {
+			int id = Integer.parseInt(parts[1]);
+			width = parts.length > 2 ? Integer.parseInt(parts[2]) : 0;
+			name = "image-" + id;
+			for (WindowEntry entry : window.values()) {
+				if (entry.id == id) {
+					name = entry.metricsName;
+					break;
+				}
+			}
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			/* Not a key of an image; recorded as is */
+		}
+		metrics.imageServed(this, name, width, bytes, nanos);
+	}
+
+	@Override
+	public void beforeClientResponse(boolean initial) {
+		super.beforeClientResponse(initial);
+		updateWindow();
+	}
+
+	/**
+	 * Registers the images within the window around the centered image and
+	 * releases the ones that have moved out of it. The window wraps around the
+	 * ends of the image list in the same way as the client side does. The
+	 * client holds its moves back for up to the navigation max latency, so the
+	 * window reaches as far as the user can navigate during that time.
+	 */
+	private void updateWindow() {
+		ImageViewerState state = getState(false);
+		int count = state.imageCount;
+		int heldMoves = (int) Math.ceil(state.navigationMaxLatency * MAX_NAVIGATION_RATE / 1000.0);
+		int reach = state.sideImageCount + 1 + Math.max(prefetchMargin, state.prefetchBudget) + heldMoves;
+		int start = 0;
+		int size = count;
+		if (2 * reach + 1 < count) {
+			start = ((state.centerImageIndex - reach) % count + count) % count;
+			size = 2 * reach + 1;
+		}
+		/* Release images that are no longer in the window */
+		Iterator<Map.Entry<Integer, WindowEntry>> it = window.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, WindowEntry> entry = it.next();
+			if ((entry.getKey() - start + count) % count >= size) {
+				unregisterImage(entry.getValue());
+				it.remove();
+			}
+		}
+		/* Fetch missing images in contiguous ranges */
+		int rangeStart = -1;
+		for (int i = 0; i <= size; i++) {
+			int index = (start + i) % Math.max(count, 1);
+			boolean missing = i < size && !window.containsKey(index);
+			if (rangeStart != -1 && (!missing || index == 0)) {
+				fetchRange(rangeStart, (index == 0 ? count : index) - rangeStart);
+				rangeStart = -1;
+			}
+			if (missing && rangeStart == -1) {
+				rangeStart = index;
+			}
+		}
+		/* Tell the client which image identifiers the window consists of */
+		int[] ids = new int[size];
+		for (int i = 0; i < size; i++) {
+			ids[i] = window.get((start + i) % count).id;
+		}
+		if (state.windowStart != start || !Arrays.equals(state.windowIds, ids)) {
+			getState().windowStart = start;
+			getState().windowIds = ids;
+		}
+	}
+
+	private void fetchRange(int offset, int limit) {
+		List<? extends Resource> fetched = dataProvider.fetch(offset, limit);
+		for (int i = 0; i < limit; i++) {
+			WindowEntry entry = new WindowEntry(nextImageId++, fetched.get(i));
+			window.put(offset + i, entry);
+			registerImage(entry);
+		}
+	}
+
+	private void releaseWindow() {
+		for (WindowEntry entry : window.values()) {
+			unregisterImage(entry);
+		}
+		window.clear();
+	}
+
+	/**
+	 * Registers the resources of an image: the original with the key "image-"
+	 * + id and, when a rendition service is set, each width tier with the key
+	 * "image-" + id + "-" + width.
+	 */
+	private void registerImage(WindowEntry entry) {
+		String version = entry.resource instanceof ConnectorResource
+				? getImageVersion((ConnectorResource) entry.resource) : null;
+		entry.metricsName = version != null ? version : "image-" + entry.id;
+		registerResource("image-" + entry.id, entry.resource, entry.metricsName, 0);
+		if (renditionService != null) {
+			for (int width : renditionWidths) {
+				Resource tier = entry.resource;
+				if (entry.resource instanceof ConnectorResource) {
+					tier = new RenditionResource(renditionService, (ConnectorResource) entry.resource, version, width);
+				}
+				registerResource("image-" + entry.id + "-" + width, tier, entry.metricsName, width);
+			}
+		}
+	}
+
+	private void unregisterImage(WindowEntry entry) {
+		unregisterResource("image-" + entry.id);
+		if (renditionService != null) {
+			for (int width : renditionWidths) {
+				unregisterResource("image-" + entry.id + "-" + width);
+			}
+		}
+	}
+
+	/**
+	 * Registers a resource with the given key. With lock-free serving, a
+	 * resource served by the application is registered to the request
+	 * handler of the session and the client is given its tokenized URL.
+	 */
+	private void registerResource(String key, Resource resource, String metricsName, int width) {
+		if (lockFreeServing && resource instanceof ConnectorResource && getSession() != null) {
+			ConnectorResource image = (ConnectorResource) resource;
+			String token = ImageRequestHandler.get(getSession()).register(this, image, getImageVersion(image),
+					getImageLastModified(image), metricsName, width);
+			imageTokens.put(key, token);
+			resource = new ExternalResource(ImageRequestHandler.getUrl(token, image));
+		}
+		setResource(key, resource);
+	}
+
+	private void unregisterResource(String key) {
+		String token = imageTokens.remove(key);
+		if (token != null && getSession() != null) {
+			ImageRequestHandler.get(getSession()).unregister(token, this);
+		}
+		setResource(key, null);
+	}
+
+	/**
+	 * Returns a version identifying the content of an image served without
+	 * the session lock. Images with a version are served from URLs derived
+	 * from it, with a strong ETag and as immutable, so browsers cache them
+	 * across visits; the version must change whenever the content changes.
+	 * By default file resources are versioned by their path, size and
+	 * modification time, and renditions by the version of their source and
+	 * their width. The version of a source also keys its renditions in a
+	 * caching rendition service such as
+	 * {@link org.tepi.imageviewer.rendition.DiskRenditionCache}. Override to
+	 * version other resources, e.g. by a content hash or a database row
+	 * version.
+	 * 
+	 * @param image
+	 *            The image
+	 * @return Version of the image, or null if unknown
+	 */
+	protected String getImageVersion(ConnectorResource image) {
+		if (image instanceof RenditionResource) {
+			RenditionResource rendition = (RenditionResource) image;
+			String version = rendition.getSourceVersion();
+			return version == null ? null : version + "@" + rendition.getWidth();
+		} else if (image instanceof FileResource) {
+			File file = ((FileResource) image).getSourceFile();
+			return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the modification time of an image, used for answering
+	 * If-Modified-Since requests for versioned images.
+	 */
+	private static long getImageLastModified(ConnectorResource image) {
+		if (image instanceof RenditionResource) {
+			return getImageLastModified(((RenditionResource) image).getSource());
+		} else if (image instanceof FileResource) {
+			return ((FileResource) image).getSourceFile().lastModified();
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if the images are served without holding the session lock.
+	 * 
+	 * @return true if enabled
+	 */
+	public boolean isLockFreeServingEnabled() {
+		return lockFreeServing;
+	}
+
+	/**
+	 * Enables or disables serving the images without holding the session
+	 * lock. By default the images are served as connector resources, which
+	 * holds the lock of the session while the stream of each image is opened,
+	 * so the image requests of a session are serialized with each other and
+	 * with the requests of its UIs. When enabled, the images are served from
+	 * unguessable URLs by a request handler of the session, which only
+	 * serves images of ImageViewers attached to the session, and written with
+	 * asynchronous I/O when the servlet supports it. Images with a version,
+	 * see {@link #getImageVersion(ConnectorResource)}, are cached by the
+	 * browser across visits.
+	 * <p>
+	 * The streams of the resources are then opened without the session lock,
+	 * so e.g. the StreamSource of a StreamResource must not access the UI.
+	 * Disabled by default.
+	 * 
+	 * @param lockFreeServing
+	 *            true to enable
+	 */
+	public void setLockFreeServingEnabled(boolean lockFreeServing) {
+		releaseWindow();
+		this.lockFreeServing = lockFreeServing;
+		markAsDirty();
+	}
+
+	/**
+	 * Returns the service producing the scaled renditions of the images.
+	 * 
+	 * @return Rendition service, or null if renditions are disabled
+	 */
+	public RenditionService getRenditionService() {
+		return renditionService;
+	}
+
+	/**
+	 * Sets the service producing scaled renditions of the images. When set,
+	 * each image is available in the width tiers given with
+	 * {@link #setRenditionWidths(int...)} in addition to the original, and the
+	 * client loads for each image the smallest tier covering the pixel width
+	 * of its slot, taking the device pixel ratio into account. A slot that
+	 * grows, e.g. when the center image is maximized, is upgraded to a larger
+	 * tier. Renditions are disabled by default.
+	 * 
+	 * @param renditionService
+	 *            Rendition service, e.g.
+	 *            {@link org.tepi.imageviewer.rendition.ImageIORenditionService}
+	 *            wrapped in a
+	 *            {@link org.tepi.imageviewer.rendition.DiskRenditionCache}, or
+	 *            null to always load the original images
+	 */
+	public void setRenditionService(RenditionService renditionService) {
+		releaseWindow();
+		this.renditionService = renditionService;
+		updateRenditionWidths();
+	}
+
+	/**
+	 * Returns the widths of the rendition tiers.
+	 * 
+	 * @return Widths in pixels, in ascending order
+	 */
+	public int[] getRenditionWidths() {
+		return renditionWidths.clone();
+	}
+
+	/**
+	 * Sets the widths of the rendition tiers. Images wider than the largest
+	 * tier are served as originals to slots wider than it. Default tiers are
+	 * 128, 256, 512 and 1024 pixels.
+	 * 
+	 * @param renditionWidths
+	 *            Widths in pixels, each over 0
+	 */
+	public void setRenditionWidths(int... renditionWidths) {
+		int[] widths = renditionWidths.clone();
+		Arrays.sort(widths);
+		if (widths.length > 0 && widths[0] < 1) {
+			throw new IllegalArgumentException("Rendition widths must be over 0.");
 		}
+		releaseWindow();
+		this.renditionWidths = widths;
+		updateRenditionWidths();
+	}
 
+	/**
+	 * Returns the pregenerator rendering the renditions of new images.
+	 * 
+	 * @return Rendition pregenerator, or null if disabled
+	 */
+	public RenditionPregenerator getRenditionPregenerator() {
+		return renditionPregenerator;
+	}
+
+	/**
+	 * Sets the pregenerator rendering the renditions of the images in the
+	 * background. When set, each list given to {@link #setImages(List)} is
+	 * rendered in all width tiers starting from the centered image, so the
+	 * first browse through the images is served from the cache of the
+	 * rendition service. The pregeneration is cancelled when the images are
+	 * changed or this ImageViewer is detached. Requires a caching rendition
+	 * service; disabled by default.
+	 * 
+	 * @param renditionPregenerator
+	 *            Rendition pregenerator, or null to disable
+	 */
+	public void setRenditionPregenerator(RenditionPregenerator renditionPregenerator) {
+		this.renditionPregenerator = renditionPregenerator;
+	}
+
+	/**
+	 * Sets the listener notified of the progress of the pregeneration. The
+	 * listener is called without the session lock.
+	 * 
+	 * @param pregenerationListener
+	 *            Progress listener, or null
+	 */
+	public void setPregenerationListener(RenditionPregenerator.ProgressListener pregenerationListener) {
+		this.pregenerationListener = pregenerationListener;
+	}
+
+	/**
+	 * Returns the pregeneration of the renditions of the current images.
+	 * 
+	 * @return The pregeneration job, or null if none has been started
+	 */
+	public RenditionPregenerator.Job getPregeneration() {
+		return pregeneration;
+	}
+
+	private void pregenerateRenditions() {
+		cancelPregeneration();
+		if (renditionPregenerator != null && renditionService != null && !images.isEmpty()) {
+			pregeneration = renditionPregenerator.submit(renditionService, images, this::getImageVersion,
+					getState(false).centerImageIndex, renditionWidths, pregenerationListener);
+		}
+	}
+
+	private void cancelPregeneration() {
+		if (pregeneration != null) {
+			pregeneration.cancel();
+			pregeneration = null;
+		}
+	}
+
+	@Override
+	public void detach() {
+		cancelPregeneration();
+		if (!imageTokens.isEmpty()) {
+			/* Stop serving the images; they are registered again on attach */
+			releaseWindow();
+		}
+		super.detach();
+	}
+
+	private void updateRenditionWidths() {
+		getState().renditionWidths = renditionService == null ? new int[0] : renditionWidths.clone();
 	}
 
 	/**
@@ -154,7 +936,7 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 
 	/**
 	 * Sets the center image index. The image with the given index will be
-	 * centered.
+	 * centered, and the listeners are notified if the centered image changes.
 	 * 
 	 * @param centerImageIndex
 	 *            Index of image to center; in relation to the List of Resources
@@ -164,14 +946,97 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 		if (centerImageIndex > getState().imageCount - 1) {
 			throw new IllegalArgumentException("Given index must be present in the list of images.");
 		}
+		boolean changed = getState(false).centerImageIndex != centerImageIndex;
+		updateCenterImageIndex(centerImageIndex);
+		if (changed) {
+			fireImageSelected(centerImageIndex);
+		}
+	}
+
+	/**
+	 * Centers the image with the given index on the client, overriding any
+	 * move of the client that has not reached the server yet.
+	 */
+	private void updateCenterImageIndex(int centerImageIndex) {
 		getState().centerImageIndex = centerImageIndex;
-		if (listeners != null) {
+		getState().centerImageSequence = -1;
+	}
+
+	private void fireImageSelected(int index) {
+		if (listeners.isEmpty()) {
+			return;
+		}
+		ImageSelectedEvent event = new ImageSelectedEvent(this, index);
+		Executor executor = listenerExecutor;
+		if (executor == null) {
+			long start = System.nanoTime();
 			for (ImageSelectionListener l : listeners) {
-				l.imageSelected(new ImageSelectedEvent(this, centerImageIndex));
+				l.imageSelected(event);
+			}
+			metrics.listenersNotified(this, listeners.size(), System.nanoTime() - start);
+		} else {
+			/* An event not yet dispatched is superseded by the new one */
+			pendingEvent.set(event);
+			if (dispatchScheduled.compareAndSet(false, true)) {
+				executor.execute(this::dispatchPendingEvents);
 			}
 		}
 	}
 
+	/**
+	 * Notifies the listeners of the pending events on the executor. Only one
+	 * dispatch runs at a time, so the listeners see the events in order.
+	 */
+	private void dispatchPendingEvents() {
+		do {
+			ImageSelectedEvent event;
+			while ((event = pendingEvent.getAndSet(null)) != null) {
+				long start = System.nanoTime();
+				for (ImageSelectionListener l : listeners) {
+					try {
+						l.imageSelected(event);
+					} catch (RuntimeException e) {
+						Logger.getLogger(ImageViewer.class.getName()).log(Level.WARNING,
+								"Image selection listener failed", e);
+					}
+				}
+				metrics.listenersNotified(this, listeners.size(), System.nanoTime() - start);
+			}
+			dispatchScheduled.set(false);
+			/* Dispatch events fired after the loop ended but before the flag was cleared */
+		} while (pendingEvent.get() != null && dispatchScheduled.compareAndSet(false, true));
+	}
+
+	/**
+	 * Returns the executor the image selection listeners are notified
+	 * through.
+	 * 
+	 * @return Listener executor, or null if the listeners are notified at
+	 *         once
+	 */
+	public Executor getListenerExecutor() {
+		return listenerExecutor;
+	}
+
+	/**
+	 * Sets the executor the image selection listeners are notified through.
+	 * By default the listeners are notified at once, while the session lock
+	 * is held, so a slow listener delays every other request of the session.
+	 * With an executor the listeners are notified on it without the session
+	 * lock; use {@link com.vaadin.ui.UI#access(Runnable)} to update the UI
+	 * from a listener. The events of this ImageViewer are delivered in order,
+	 * one at a time, and an event not yet delivered when the next one is
+	 * fired is skipped, so the listeners see the latest selection. The
+	 * executor is not serialized with the component.
+	 * 
+	 * @param listenerExecutor
+	 *            Executor to notify the listeners through, or null to notify
+	 *            them at once
+	 */
+	public void setListenerExecutor(Executor listenerExecutor) {
+		this.listenerExecutor = listenerExecutor;
+	}
+
 	/**
 	 * Returns current image horizontal padding value.
 	 * 
@@ -299,6 +1164,205 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 		getState().animationDuration = animationDuration;
 	}
 
+	/**
+	 * Returns the time without moves after which the client sends the latest
+	 * move to the server.
+	 * 
+	 * @return quiet period in milliseconds
+	 */
+	public int getNavigationQuietPeriod() {
+		return getState(false).navigationQuietPeriod;
+	}
+
+	/**
+	 * Sets the time without moves after which the client sends the latest
+	 * move to the server. Moves made during the quiet period replace the
+	 * previous one, so e.g. holding down an arrow key sends the image the
+	 * user stops at instead of every image passed. The move is also sent when
+	 * the component loses focus or is removed. Default is 250 ms.
+	 * 
+	 * @param navigationQuietPeriod
+	 *            quiet period in milliseconds, 0 to send each move at once
+	 */
+	public void setNavigationQuietPeriod(int navigationQuietPeriod) {
+		if (navigationQuietPeriod < 0) {
+			throw new IllegalArgumentException("Minimum allowed value is 0.");
+		}
+		getState().navigationQuietPeriod = navigationQuietPeriod;
+	}
+
+	/**
+	 * Returns the maximum time the client holds a move back before sending it
+	 * to the server.
+	 * 
+	 * @return maximum latency in milliseconds
+	 */
+	public int getNavigationMaxLatency() {
+		return getState(false).navigationMaxLatency;
+	}
+
+	/**
+	 * Sets the maximum time the client holds a move back before sending it to
+	 * the server, even if the user keeps moving. The images the user can reach
+	 * during this time are kept registered as resources, so a longer latency
+	 * keeps more images registered. Default is 1000 ms.
+	 * 
+	 * @param navigationMaxLatency
+	 *            maximum latency in milliseconds
+	 */
+	public void setNavigationMaxLatency(int navigationMaxLatency) {
+		if (navigationMaxLatency < 0) {
+			throw new IllegalArgumentException("Minimum allowed value is 0.");
+		}
+		getState().navigationMaxLatency = navigationMaxLatency;
+	}
+
+	/**
+	 * Returns true if frame time statistics of the animations are logged on
+	 * the client side.
+	 * 
+	 * @return true if enabled
+	 */
+	public boolean isFrameStatisticsEnabled() {
+		return getState(false).frameStatistics;
+	}
+
+	/**
+	 * Enables or disables logging of frame time statistics of the animations on
+	 * the client side. For each animation the amount of frames, the frame rate,
+	 * the longest frame and the amount of dropped frames is logged to the
+	 * browser console.
+	 * 
+	 * @param frameStatistics
+	 *            true to enable
+	 */
+	public void setFrameStatisticsEnabled(boolean frameStatistics) {
+		getState().frameStatistics = frameStatistics;
+	}
+
+	/**
+	 * Returns true if the client reports its performance measurements to the
+	 * server.
+	 * 
+	 * @return true if enabled
+	 */
+	public boolean isTelemetryEnabled() {
+		return getState(false).telemetry;
+	}
+
+	/**
+	 * Enables or disables reporting the performance measurements of the
+	 * client to the server. The client records the load latency, decode time
+	 * and time to show of the images, the frames and dropped frames of the
+	 * animations and the amount of moves queued behind a running animation,
+	 * aggregates them into histograms and sends them once per
+	 * {@link #setTelemetryInterval(int) interval} to the
+	 * {@link TelemetryListener}s. Disabled by default.
+	 * 
+	 * @param telemetry
+	 *            true to enable
+	 */
+	public void setTelemetryEnabled(boolean telemetry) {
+		getState().telemetry = telemetry;
+	}
+
+	/**
+	 * Returns the time between the telemetry reports of the client.
+	 * 
+	 * @return interval in milliseconds
+	 */
+	public int getTelemetryInterval() {
+		return getState(false).telemetryInterval;
+	}
+
+	/**
+	 * Sets the time between the telemetry reports of the client. Periods
+	 * without any measurements are not reported. Default is 30000 ms.
+	 * 
+	 * @param telemetryInterval
+	 *            interval in milliseconds, at least 1000
+	 */
+	public void setTelemetryInterval(int telemetryInterval) {
+		if (telemetryInterval < 1000) {
+			throw new IllegalArgumentException("Minimum allowed value is 1000.");
+		}
+		getState().telemetryInterval = telemetryInterval;
+	}
+
+	/**
+	 * Returns true if the images are positioned with CSS transforms.
+	 * 
+	 * @return true if enabled
+	 */
+	public boolean isTransformRenderingEnabled() {
+		return getState(false).transformRendering;
+	}
+
+	/**
+	 * Enables or disables transform rendering. When enabled, the images are
+	 * moved and scaled with CSS translate/scale transforms during animations
+	 * and faded with CSS opacity transitions, so the browser can animate them
+	 * without relayouts. The layout size of each image is updated only when
+	 * an animation ends. Requires a browser supporting CSS transforms and
+	 * transitions; disabled by default.
+	 * 
+	 * @param transformRendering
+	 *            true to enable
+	 */
+	public void setTransformRenderingEnabled(boolean transformRendering) {
+		getState().transformRendering = transformRendering;
+	}
+
+	/**
+	 * Returns the maximum amount of images loaded at the same time.
+	 * 
+	 * @return maximum amount of concurrent loads
+	 */
+	public int getMaxConcurrentLoads() {
+		return getState(false).maxConcurrentLoads;
+	}
+
+	/**
+	 * Sets the maximum amount of images the client loads at the same time. The
+	 * images are loaded in the order of their distance from the center image,
+	 * and the center image is always loaded immediately regardless of this
+	 * limit. The limit is shared by all ImageViewers on the page. Default is
+	 * 4.
+	 * 
+	 * @param maxConcurrentLoads
+	 *            maximum amount of concurrent loads, at least 1
+	 */
+	public void setMaxConcurrentLoads(int maxConcurrentLoads) {
+		if (maxConcurrentLoads < 1) {
+			throw new IllegalArgumentException("Maximum amount of concurrent loads must be at least 1!");
+		}
+		getState().maxConcurrentLoads = maxConcurrentLoads;
+	}
+
+	/**
+	 * Returns the maximum amount of image dimensions cached on the client.
+	 * 
+	 * @return cache capacity
+	 */
+	public int getDimensionCacheCapacity() {
+		return getState(false).dimensionCacheCapacity;
+	}
+
+	/**
+	 * Sets the maximum amount of image dimensions cached on the client. When
+	 * the cache is full, the least recently used entries are evicted. The
+	 * cache is shared by all ImageViewers on the page. Default is 1000.
+	 * 
+	 * @param dimensionCacheCapacity
+	 *            maximum amount of cached images, at least 1
+	 */
+	public void setDimensionCacheCapacity(int dimensionCacheCapacity) {
+		if (dimensionCacheCapacity < 1) {
+			throw new IllegalArgumentException("Dimension cache capacity must be at least 1!");
+		}
+		getState().dimensionCacheCapacity = dimensionCacheCapacity;
+	}
+
 	/**
 	 * Returns true if mouse over effects are enabled.
 	 * 
@@ -348,18 +1412,31 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 		}
 	}
 
+	/**
+	 * Adds a new ImageSelectionListener to this ImageViewer. The listener will
+	 * be notified when the selected (= centered) image is changed. Listeners
+	 * may be added and removed from any thread.
+	 * 
+	 * @param l
+	 *            Listener to add
+	 * @return Registration for removing the listener
+	 */
+	public Registration addImageSelectionListener(ImageSelectionListener l) {
+		listeners.add(l);
+		return () -> listeners.remove(l);
+	}
+
 	/**
 	 * Adds a new ImageSelectionListener to this ImageViewer. The listener will
 	 * be notified when the selected (= centered) image is changed.
 	 * 
 	 * @param l
 	 *            Listener to add
+	 * @deprecated Use {@link #addImageSelectionListener(ImageSelectionListener)}
 	 */
+	@Deprecated
 	public void addListener(ImageSelectionListener l) {
-		if (listeners == null) {
-			listeners = new LinkedList<ImageSelectionListener>();
-		}
-		listeners.add(l);
+		addImageSelectionListener(l);
 	}
 
 	/**
@@ -367,11 +1444,12 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 	 * 
 	 * @param l
 	 *            Listener to remove
+	 * @deprecated Use the Registration returned by
+	 *             {@link #addImageSelectionListener(ImageSelectionListener)}
 	 */
+	@Deprecated
 	public void removeListener(ImageSelectionListener l) {
-		if (listeners != null) {
-			listeners.remove(l);
-		}
+		listeners.remove(l);
 	}
 
 	/**
@@ -387,6 +1465,105 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 		public void imageSelected(ImageSelectedEvent e);
 	}
 
+	/**
+	 * Adds a new TelemetryListener to this ImageViewer. The listener will be
+	 * notified of the performance measurements reported by the client while
+	 * telemetry is enabled, see {@link #setTelemetryEnabled(boolean)}.
+	 * 
+	 * @param l
+	 *            Listener to add
+	 * @return Registration for removing the listener
+	 */
+	public Registration addTelemetryListener(TelemetryListener l) {
+		telemetryListeners.add(l);
+		return () -> telemetryListeners.remove(l);
+	}
+
+	/**
+	 * TelemetryListener. Implement this interface to receive the performance
+	 * measurements of the client.
+	 */
+	public interface TelemetryListener {
+		/**
+		 * This method is called when the client has reported its
+		 * measurements.
+		 * 
+		 * @param e telemetry event
+		 */
+		public void telemetryReported(TelemetryEvent e);
+	}
+
+	/**
+	 * Telemetry event. Fired to registered listeners when the client reports
+	 * the performance measurements of a period.
+	 */
+	public static class TelemetryEvent extends EventObject {
+		private final TelemetryReport report;
+
+		private TelemetryEvent(ImageViewer source, TelemetryReport report) {
+			super(source);
+			this.report = report;
+		}
+
+		/**
+		 * Returns the ImageViewer the measurements were made by.
+		 * 
+		 * @return The ImageViewer
+		 */
+		public ImageViewer getImageViewer() {
+			return (ImageViewer) getSource();
+		}
+
+		/**
+		 * Returns the histograms and counters of the report. The bucket
+		 * bounds of the histograms are in {@link TelemetryReport#TIME_BOUNDS}
+		 * and {@link TelemetryReport#DEPTH_BOUNDS}. Reports with missing or
+		 * mismatched histograms or negative values are not fired.
+		 * 
+		 * @return The report
+		 */
+		public TelemetryReport getReport() {
+			return report;
+		}
+
+		/**
+		 * Returns the upper bound of the histogram bucket containing the
+		 * given percentile of the image load latencies.
+		 * 
+		 * @param percentile
+		 *            Percentile between 0 and 100
+		 * @return Latency in milliseconds, Integer.MAX_VALUE if over the
+		 *         largest bound or -1 if no images were loaded
+		 */
+		public int getLoadLatencyPercentile(double percentile) {
+			return TelemetryReport.percentile(report.loadLatency, TelemetryReport.TIME_BOUNDS, percentile);
+		}
+
+		/**
+		 * Returns the upper bound of the histogram bucket containing the
+		 * given percentile of the times from setting an image to showing it.
+		 * 
+		 * @param percentile
+		 *            Percentile between 0 and 100
+		 * @return Time in milliseconds, Integer.MAX_VALUE if over the largest
+		 *         bound or -1 if no images were shown
+		 */
+		public int getFirstPaintPercentile(double percentile) {
+			return TelemetryReport.percentile(report.firstPaint, TelemetryReport.TIME_BOUNDS, percentile);
+		}
+
+		/**
+		 * Returns the share of the frames of the animations that were
+		 * dropped.
+		 * 
+		 * @return Ratio between 0 and 1, 0 if no animations were run
+		 */
+		public double getDroppedFrameRatio() {
+			int total = report.frames + report.droppedFrames;
+			return total == 0 ? 0 : (double) report.droppedFrames / total;
+		}
+	}
+
 	/**
 	 * Image selection event. Fired to registered listeners when the centered
 	 * image is changed.
@@ -417,4 +1594,42 @@ public class ImageViewer extends AbstractComponent implements Focusable {
 			return selectedIndex;
 		}
 	}
+
+	/**
+	 * Data provider backed by the list given to {@link #setImages(List)}.
+	 */
+	private static class ListDataProvider implements ImageDataProvider {
+		private final List<Resource> images;
+
+		private ListDataProvider(List<Resource> images) {
+			this.images = images;
+		}
+
+		@Override
+		public int size() {
+			return images.size();
+		}
+
+		@Override
+		public List<? extends Resource> fetch(int offset, int limit) {
+			return images.subList(offset, offset + limit);
+		}
+	}
+
+	/**
+	 * An image registered as a resource. The identifier stays the same while
+	 * the image is in the window, even if its index changes.
+	 */
+	private static class WindowEntry implements Serializable {
+		private final int id;
+		private final Resource resource;
+
+		/* Name the image is recorded under in the metrics */
+		private String metricsName;
+
+		private WindowEntry(int id, Resource resource) {
+			this.id = id;
+			this.resource = resource;
+		}
+	}
 }
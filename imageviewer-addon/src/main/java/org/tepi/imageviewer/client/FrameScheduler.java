@@ -0,0 +1,117 @@
+package org.tepi.imageviewer.client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gwt.animation.client.AnimationScheduler;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationCallback;
+import com.google.gwt.animation.client.AnimationScheduler.AnimationHandle;
+
+/**
+ * FrameScheduler batches the style updates of the VImage slots of one
+ * VImageViewer. Slots whose size or position changes are queued instead of
+ * writing their styles immediately. The queue is processed either when the
+ * owner flushes it at the end of an animation frame, or on the next animation
+ * frame. All new sizes are calculated before any of them is written, so a
+ * frame never interleaves style writes with calculations.
+ * 
+ * @author Teppo Kurki
+ */
+class FrameScheduler implements AnimationCallback {
+
+	/** Slots with pending style updates */
+	private final List<VImage> dirtyImages = new ArrayList<VImage>();
+
+	/** Handle of the requested animation frame, or null if none is pending */
+	private AnimationHandle frame;
+
+	/** Slots with a loaded image waiting to be swapped in */
+	private final List<VImage> pendingSwaps = new ArrayList<VImage>();
+
+	private final VImageViewer viewer;
+
+	FrameScheduler(VImageViewer viewer) {
+		this.viewer = viewer;
+	}
+
+	/**
+	 * Queues the style update of the given slot and requests an animation
+	 * frame for it, unless one is already pending.
+	 * 
+	 * @param image
+	 *            Slot to update
+	 */
+	void schedule(VImage image) {
+		dirtyImages.add(image);
+		requestFrame();
+	}
+
+	/**
+	 * Queues swapping in the loaded image of the given slot. While an
+	 * animation is running only one image is swapped in per frame, the most
+	 * urgent one first, so that the swaps do not make the frames drop.
+	 * 
+	 * @param image
+	 *            Slot with a loaded image
+	 */
+	void scheduleSwap(VImage image) {
+		if (!pendingSwaps.contains(image)) {
+			pendingSwaps.add(image);
+		}
+		requestFrame();
+	}
+
+	private void requestFrame() {
+		if (frame == null) {
+			frame = AnimationScheduler.get().requestAnimationFrame(this);
+		}
+	}
+
+	/**
+	 * Swaps in the loaded images and calculates and writes the pending style
+	 * updates of all queued slots.
+	 */
+	void flush() {
+		swapImages();
+		if (dirtyImages.isEmpty()) {
+			return;
+		}
+		for (VImage image : dirtyImages) {
+			image.measure();
+		}
+		for (VImage image : dirtyImages) {
+			image.writeStyles();
+		}
+		dirtyImages.clear();
+	}
+
+	private void swapImages() {
+		if (pendingSwaps.isEmpty()) {
+			return;
+		}
+		if (!viewer.animationRunning) {
+			for (VImage image : pendingSwaps) {
+				image.swapImage();
+			}
+			pendingSwaps.clear();
+			return;
+		}
+		VImage urgent = pendingSwaps.get(0);
+		for (VImage image : pendingSwaps) {
+			if (image.getLoadPriority() < urgent.getLoadPriority()) {
+				urgent = image;
+			}
+		}
+		pendingSwaps.remove(urgent);
+		urgent.swapImage();
+		if (!pendingSwaps.isEmpty()) {
+			requestFrame();
+		}
+	}
+
+	@Override
+	public void execute(double timestamp) {
+		frame = null;
+		flush();
+	}
+}
@@ -0,0 +1,86 @@
+package org.tepi.imageviewer.client;
+
+import java.util.logging.Logger;
+
+import com.google.gwt.core.client.Duration;
+
+/**
+ * FrameStatistics measures the frame times of the ImageViewer animations.
+ * When logging is enabled, a summary of each animation is logged, e.g. to
+ * verify that the animations run at 60 frames per second.
+ * 
+ * @author Teppo Kurki
+ */
+class FrameStatistics {
+
+	/** Time available for one frame at 60 frames per second */
+	private static final double FRAME_BUDGET = 1000.0 / 60;
+
+	private double startTime;
+	private double previousFrameTime;
+	private double longestFrame;
+	private int frames;
+	private int droppedFrames;
+	private boolean running;
+	private boolean logged;
+
+	/** Enables or disables logging the summary of each animation */
+	void setLogged(boolean logged) {
+		this.logged = logged;
+	}
+
+	/** Starts measuring an animation */
+	void start() {
+		startTime = Duration.currentTimeMillis();
+		previousFrameTime = startTime;
+		longestFrame = 0;
+		frames = 0;
+		droppedFrames = 0;
+		running = true;
+	}
+
+	/** Records a frame of the running animation */
+	void frame() {
+		if (!running) {
+			return;
+		}
+		double now = Duration.currentTimeMillis();
+		double frameTime = now - previousFrameTime;
+		previousFrameTime = now;
+		frames++;
+		longestFrame = Math.max(longestFrame, frameTime);
+		/* Frames that took longer than 1.5 budgets missed at least one frame */
+		if (frameTime > 1.5 * FRAME_BUDGET) {
+			droppedFrames += (int) Math.round(frameTime / FRAME_BUDGET) - 1;
+		}
+	}
+
+	/**
+	 * Stops measuring and logs the statistics of the animation if logging is
+	 * enabled. Returns false if no animation was being measured.
+	 */
+	boolean stop() {
+		if (!running) {
+			return false;
+		}
+		running = false;
+		double duration = Duration.currentTimeMillis() - startTime;
+		if (logged && frames > 0) {
+			Logger.getLogger(FrameStatistics.class.getName())
+					.info("ImageViewer animation: " + frames + " frames in " + Math.round(duration) + " ms, "
+							+ Math.round(frames * 1000 / duration) + " fps, longest frame "
+							+ Math.round(longestFrame) + " ms, " + droppedFrames + " dropped");
+		}
+		return true;
+	}
+
+	/** Returns the amount of frames of the latest animation */
+	int getFrames() {
+		return frames;
+	}
+
+	/** Returns the amount of dropped frames of the latest animation */
+	int getDroppedFrames() {
+		return droppedFrames;
+	}
+}
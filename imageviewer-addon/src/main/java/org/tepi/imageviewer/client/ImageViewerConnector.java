@@ -1,8 +1,18 @@
 package org.tepi.imageviewer.client;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import org.tepi.imageviewer.ImageViewer;
 import org.tepi.imageviewer.client.VImageViewer.ImageSelectionListener;
+import org.tepi.imageviewer.client.VImageViewer.ImageUrlProvider;
+import org.tepi.imageviewer.client.imagepreloader.ImagePreloader;
 
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.event.dom.client.BlurEvent;
+import com.google.gwt.event.dom.client.BlurHandler;
+import com.google.gwt.user.client.Timer;
 import com.vaadin.client.communication.RpcProxy;
 import com.vaadin.client.communication.StateChangeEvent;
 import com.vaadin.client.ui.AbstractComponentConnector;
@@ -12,10 +22,63 @@ import com.vaadin.shared.ui.Connect;
 @SuppressWarnings("serial")
 @Connect(ImageViewer.class)
 public class ImageViewerConnector extends AbstractComponentConnector
-		implements SimpleManagedLayout, ImageSelectionListener {
+		implements SimpleManagedLayout, ImageSelectionListener, ImageUrlProvider {
 
 	private ImageViewerServerRpc rpc = RpcProxy.create(ImageViewerServerRpc.class, this);
 
+	/** State properties the widget is updated from */
+	private static final String[] PROPERTIES = { "mouseOverEffects", "imageCount", "centerImageIndex",
+			"sideImageCount", "imageHorizontalPadding", "imageVerticalPadding", "centerImageRelativeWidth",
+			"sideImageRelativeWidth", "resources", "windowStart", "windowIds", "transformRendering",
+			"renditionWidths", "centerImageSequence" };
+
+	/** Properties changed while an animation was running */
+	private final Set<String> changesDuringAnimation = new HashSet<String>();
+
+	/** Sequence number of the latest move sent to the server */
+	private int navigationSequence;
+
+	/** Time the oldest move not yet sent to the server was made, or 0 */
+	private double pendingMoveTime;
+
+	/** Timer sending the latest move once the user has paused */
+	private final Timer navigationTimer = new Timer() {
+		@Override
+		public void run() {
+			flushNavigation();
+		}
+	};
+
+	/** Interval the telemetry timer runs at, or 0 if telemetry is disabled */
+	private int telemetryInterval;
+
+	/** Timer sending the performance measurements to the server */
+	private final Timer telemetryTimer = new Timer() {
+		@Override
+		public void run() {
+			flushTelemetry();
+		}
+	};
+
+	@Override
+	protected void init() {
+		super.init();
+		getWidget().addBlurHandler(new BlurHandler() {
+			@Override
+			public void onBlur(BlurEvent event) {
+				flushNavigation();
+			}
+		});
+	}
+
+	@Override
+	public void onUnregister() {
+		flushNavigation();
+		telemetryTimer.cancel();
+		flushTelemetry();
+		super.onUnregister();
+	}
+
 	@Override
 	public ImageViewerState getState() {
 		return (ImageViewerState) super.getState();
@@ -25,38 +88,114 @@ public class ImageViewerConnector extends AbstractComponentConnector
 	public void onStateChanged(StateChangeEvent stateChangeEvent) {
 		super.onStateChanged(stateChangeEvent);
 
-		/* If animation is currently running, ignore state change */
-		/* The final queued animation will trigger a new state change anyway. */
+		Set<String> changes = null;
+		if (stateChangeEvent.isInitialStateChange()) {
+			navigationSequence = Math.max(navigationSequence, getState().centerImageSequence);
+		} else {
+			changes = new HashSet<String>();
+			for (String property : PROPERTIES) {
+				if (stateChangeEvent.hasPropertyChanged(property)) {
+					changes.add(property);
+				}
+			}
+		}
+		/* If animation is currently running, apply the changes once it ends */
 		if (getWidget().animationRunning) {
+			changesDuringAnimation.addAll(changes == null ? Arrays.asList(PROPERTIES) : changes);
 			return;
 		}
-		getWidget().mouseOverEffects = getState().mouseOverEffects;
-		getWidget().amountOfImages = getState().imageCount;
-		getWidget().centerImageIndex = getState().centerImageIndex;
-		/* Pass image URLs to widget */
-		getWidget().urls = new String[getState().imageCount];
-		for (int i = 0; i < getState().imageCount; i++) {
-			getWidget().urls[i] = getResourceUrl("image-" + i);
+		applyState(changes);
+	}
+
+	/**
+	 * Applies the fields of the state that differ from what the widget already
+	 * has, and re-renders only as much as the changes require.
+	 *
+	 * @param changes
+	 *            Names of the changed properties, or null to apply all of them
+	 */
+	private void applyState(Set<String> changes) {
+		VImageViewer widget = getWidget();
+		ImageViewerState state = getState();
+		boolean render = false;
+		boolean sources = false;
+		boolean resize = false;
+
+		if (changed(changes, "mouseOverEffects") && widget.mouseOverEffects != state.mouseOverEffects) {
+			widget.mouseOverEffects = state.mouseOverEffects;
+			render = true;
+		}
+		if (changed(changes, "imageCount") && widget.amountOfImages != state.imageCount) {
+			render |= widget.amountOfImages == 0 || state.imageCount == 0;
+			widget.amountOfImages = state.imageCount;
+			sources = true;
 		}
+		/*
+		 * A center acknowledging an older move of the client is stale, since a
+		 * newer move is already on its way to the server
+		 */
+		boolean serverCenter = state.centerImageSequence < 0 || state.centerImageSequence >= navigationSequence;
+		boolean centerChanged = serverCenter
+				&& (changed(changes, "centerImageIndex") || changed(changes, "centerImageSequence"))
+				&& widget.centerImageIndex != state.centerImageIndex;
 		/* Do not update side image count if the center image is maximized */
-		if (getWidget().previousSideImages == 0) {
-			getWidget().sideImages = getState().sideImageCount;
-		}
-		getWidget().centerImageWidth = getState().centerImageRelativeWidth;
-		getWidget().sideImageReducePercentage = getState().sideImageRelativeWidth;
-		getWidget().animationEnabled = getState().animationEnabled;
-		getWidget().animationDuration = getState().animationDuration;
-		getWidget().paddingX = getState().imageHorizontalPadding;
-		getWidget().paddingY = getState().imageVerticalPadding;
-		/* Render the images. */
-		getWidget().fixSideImageCount();
-		getWidget().renderImages();
+		if (widget.previousSideImages == 0 && (sources || centerChanged || changed(changes, "sideImageCount"))) {
+			int sideImages = widget.sideImages;
+			widget.sideImages = state.sideImageCount;
+			widget.fixSideImageCount();
+			render |= sideImages != widget.sideImages;
+		}
+		if (changed(changes, "imageHorizontalPadding") || changed(changes, "imageVerticalPadding")) {
+			render |= widget.paddingX != state.imageHorizontalPadding
+					|| widget.paddingY != state.imageVerticalPadding;
+			widget.paddingX = state.imageHorizontalPadding;
+			widget.paddingY = state.imageVerticalPadding;
+		}
+		if (changed(changes, "centerImageRelativeWidth") || changed(changes, "sideImageRelativeWidth")) {
+			resize = widget.centerImageWidth != state.centerImageRelativeWidth
+					|| widget.sideImageReducePercentage != state.sideImageRelativeWidth;
+			widget.centerImageWidth = state.centerImageRelativeWidth;
+			widget.sideImageReducePercentage = state.sideImageRelativeWidth;
+		}
+		widget.animationEnabled = state.animationEnabled;
+		widget.animationDuration = state.animationDuration;
+		widget.prefetchBudget = state.prefetchBudget;
+		widget.setFrameStatisticsEnabled(state.frameStatistics);
+		updateTelemetry(state.telemetry ? Math.max(1000, state.telemetryInterval) : 0);
+		ImagePreloader.setMaxConcurrentLoads(state.maxConcurrentLoads);
+		ImagePreloader.setDimensionCacheCapacity(state.dimensionCacheCapacity);
+		if (changed(changes, "transformRendering")) {
+			widget.setTransformRendering(state.transformRendering);
+		}
+
+		if (render) {
+			if (serverCenter) {
+				widget.centerImageIndex = state.centerImageIndex;
+			}
+			widget.renderImages();
+		} else {
+			if (centerChanged) {
+				widget.showImage(state.centerImageIndex, false);
+			}
+			if (sources || changed(changes, "resources") || changed(changes, "windowIds")
+				|| changed(changes, "renditionWidths")) {
+				widget.updateImageSources();
+			}
+			if (resize) {
+				widget.resizeImages();
+			}
+		}
+	}
+
+	private static boolean changed(Set<String> changes, String property) {
+		return changes == null || changes.contains(property);
 	}
 
 	@Override
 	public VImageViewer getWidget() {
 		VImageViewer widget = (VImageViewer) super.getWidget();
 		widget.setImageSelectionListener(this);
+		widget.setImageUrlProvider(this);
 		return widget;
 	}
 
@@ -69,8 +208,98 @@ public class ImageViewerConnector extends AbstractComponentConnector
 		}
 	}
 
+	/**
+	 * Queues the move to be sent to the server. Moves are sent once no new
+	 * move has been made during the quiet period, but held back no longer
+	 * than the maximum latency; a queued move replaces the previous one.
+	 */
 	@Override
 	public void centerImageSelected(int imageIndex) {
-		rpc.centerImageSelected(imageIndex);
+		rpc.centerImageSelected(imageIndex, ++navigationSequence);
+		double now = Duration.currentTimeMillis();
+		if (pendingMoveTime == 0) {
+			pendingMoveTime = now;
+		}
+		ImageViewerState state = getState();
+		int delay = (int) Math.min(state.navigationQuietPeriod, pendingMoveTime + state.navigationMaxLatency - now);
+		if (delay <= 0) {
+			flushNavigation();
+		} else {
+			navigationTimer.schedule(delay);
+		}
+	}
+
+	/**
+	 * Sends the queued move to the server, if any.
+	 */
+	private void flushNavigation() {
+		navigationTimer.cancel();
+		if (pendingMoveTime != 0) {
+			pendingMoveTime = 0;
+			getConnection().getServerRpcQueue().flush();
+		}
+	}
+
+	/**
+	 * Enables or disables telemetry and restarts the timer reporting the
+	 * measurements at the given interval.
+	 */
+	private void updateTelemetry(int interval) {
+		if (interval == telemetryInterval) {
+			return;
+		}
+		telemetryTimer.cancel();
+		if (interval == 0) {
+			getWidget().setTelemetryEnabled(false);
+		} else {
+			getWidget().setTelemetryEnabled(true);
+			telemetryTimer.scheduleRepeating(interval);
+		}
+		telemetryInterval = interval;
+	}
+
+	/**
+	 * Sends the performance measurements made since the previous report, if
+	 * any.
+	 */
+	private void flushTelemetry() {
+		Telemetry telemetry = getWidget().getTelemetry();
+		TelemetryReport report = telemetry == null ? null : telemetry.takeReport();
+		if (report != null) {
+			rpc.telemetryReported(report);
+		}
+	}
+
+	@Override
+	public void animationFinished() {
+		if (!changesDuringAnimation.isEmpty()) {
+			Set<String> changes = new HashSet<String>(changesDuringAnimation);
+			changesDuringAnimation.clear();
+			applyState(changes);
+		}
+	}
+
+	@Override
+	public String getImageUrl(int imageIndex, int tier) {
+		ImageViewerState state = getState();
+		if (state.imageCount <= 0) {
+			return null;
+		}
+		int offset = (imageIndex - state.windowStart + state.imageCount) % state.imageCount;
+		if (offset >= state.windowIds.length) {
+			return null;
+		}
+		String key = "image-" + state.windowIds[offset];
+		return getResourceUrl(tier == VImageViewer.ORIGINAL ? key : key + "-" + tier);
+	}
+
+	@Override
+	public int selectTier(int pixelWidth) {
+		for (int width : getState().renditionWidths) {
+			if (width >= pixelWidth) {
+				return width;
+			}
+		}
+		return VImageViewer.ORIGINAL;
 	}
-}
\ No newline at end of file
+}
@@ -1,8 +1,30 @@
 package org.tepi.imageviewer.client;
 
+import com.vaadin.shared.annotations.Delayed;
 import com.vaadin.shared.communication.ServerRpc;
 
 public interface ImageViewerServerRpc extends ServerRpc {
 
-	public void centerImageSelected(int newCenterImageIndex);
+	/**
+	 * Called when the user has moved the center image on the client. Only the
+	 * latest move is sent; the client flushes it once the user pauses.
+	 * 
+	 * @param newCenterImageIndex
+	 *            Index of the new center image
+	 * @param sequence
+	 *            Sequence number of the move; increases with each move of the
+	 *            client
+	 */
+	@Delayed(lastOnly = true)
+	public void centerImageSelected(int newCenterImageIndex, int sequence);
+
+	/**
+	 * Called periodically with the performance measurements made on the
+	 * client while telemetry is enabled. Not called for periods without
+	 * measurements.
+	 * 
+	 * @param report
+	 *            Measurements made since the previous report
+	 */
+	public void telemetryReported(TelemetryReport report);
 }
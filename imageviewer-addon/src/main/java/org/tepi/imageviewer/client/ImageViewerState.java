@@ -9,6 +9,11 @@ public class ImageViewerState extends TabIndexState {
 	public int sideImageCount = 2;
 	/** Index of the currently centered image */
 	public int centerImageIndex;
+	/**
+	 * Sequence number of the client move {@link #centerImageIndex} was set by,
+	 * or -1 if it was set on the server
+	 */
+	public int centerImageSequence = -1;
 	/** Padding (in pixels) on the left and right side of each image */
 	public int imageHorizontalPadding = 3;
 	/** Padding (in pixels) on the top and bottom side of each image */
@@ -26,6 +31,38 @@ public class ImageViewerState extends TabIndexState {
 	public int animationDuration = 200;
 	/** Are mouse over effects enabled */
 	public boolean mouseOverEffects;
+	/** Are frame time statistics of the animations logged */
+	public boolean frameStatistics;
+	/** Are performance measurements reported to the server */
+	public boolean telemetry;
+	/** Time in milliseconds between the reports of the measurements */
+	public int telemetryInterval = 30000;
+	/** Are the images positioned with CSS transforms instead of left/width */
+	public boolean transformRendering;
+	/** Maximum amount of images loaded at the same time */
+	public int maxConcurrentLoads = 4;
+	/** Maximum amount of image dimensions cached on the client */
+	public int dimensionCacheCapacity = 1000;
+	/** Maximum amount of images prefetched ahead in the direction of navigation */
+	public int prefetchBudget = 4;
+	/** Time in milliseconds without moves after which the latest move is sent */
+	public int navigationQuietPeriod = 250;
+	/** Maximum time in milliseconds a move is held back before it is sent */
+	public int navigationMaxLatency = 1000;
 	/** Amount of images added to the viewer */
 	public int imageCount;
+	/** Index of the first image in the window of images registered as resources */
+	public int windowStart;
+	/**
+	 * Identifiers of the images in the window, starting from the image at
+	 * {@link #windowStart} and wrapping around the end of the images. The
+	 * resource of each image is registered with the key "image-" + identifier.
+	 */
+	public int[] windowIds = new int[0];
+	/**
+	 * Widths of the rendition tiers the images are available in, in ascending
+	 * order. The resource of a tier is registered with the key "image-" +
+	 * identifier + "-" + width. Empty if only the originals are available.
+	 */
+	public int[] renditionWidths = new int[0];
 }
@@ -0,0 +1,77 @@
+package org.tepi.imageviewer.client;
+
+import com.google.gwt.core.client.Duration;
+
+/**
+ * Telemetry collects the performance measurements of an ImageViewer into the
+ * histograms of a {@link TelemetryReport} until the report is taken for
+ * sending to the server.
+ *
+ * @author Teppo Kurki
+ */
+class Telemetry {
+
+	private TelemetryReport report = new TelemetryReport();
+	private double periodStart = Duration.currentTimeMillis();
+
+	/**
+	 * Records a finished image load.
+	 *
+	 * @param loadLatency
+	 *            Time (ms) from starting the load to the image being fetched,
+	 *            negative if the image was not fetched, e.g. a failed load
+	 * @param decodeTime
+	 *            Time (ms) from the image being fetched to it being decoded,
+	 *            negative if not known
+	 */
+	void imageLoaded(double loadLatency, double decodeTime) {
+		if (loadLatency >= 0) {
+			report.loadLatency[TelemetryReport.bucket(TelemetryReport.TIME_BOUNDS, loadLatency)]++;
+		}
+		if (decodeTime >= 0) {
+			report.decodeTime[TelemetryReport.bucket(TelemetryReport.TIME_BOUNDS, decodeTime)]++;
+		}
+	}
+
+	/** Records a failed image load */
+	void imageFailed() {
+		report.failedLoads++;
+	}
+
+	/**
+	 * Records the time from setting an image to a slot to it being shown.
+	 */
+	void imagePainted(double time) {
+		report.firstPaint[TelemetryReport.bucket(TelemetryReport.TIME_BOUNDS, time)]++;
+	}
+
+	/** Records the frames of a finished animation */
+	void animationFinished(int frames, int droppedFrames) {
+		report.animations++;
+		report.frames += frames;
+		report.droppedFrames += droppedFrames;
+	}
+
+	/** Records the amount of moves waiting for a running animation */
+	void movesQueued(int depth) {
+		report.queueDepth[TelemetryReport.bucket(TelemetryReport.DEPTH_BOUNDS, depth)]++;
+	}
+
+	/**
+	 * Returns the measurements made since the previous call and starts a new
+	 * period.
+	 *
+	 * @return The report, or null if nothing was measured
+	 */
+	TelemetryReport takeReport() {
+		if (!report.hasMeasurements()) {
+			return null;
+		}
+		double now = Duration.currentTimeMillis();
+		TelemetryReport taken = report;
+		taken.period = (int) Math.round(now - periodStart);
+		report = new TelemetryReport();
+		periodStart = now;
+		return taken;
+	}
+}
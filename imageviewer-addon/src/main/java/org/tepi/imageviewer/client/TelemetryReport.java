@@ -0,0 +1,124 @@
+package org.tepi.imageviewer.client;
+
+import java.io.Serializable;
+
+/**
+ * TelemetryReport holds the performance measurements an ImageViewer has made
+ * in the browser during one reporting period. The measurements are aggregated
+ * into histograms on the client, so the size of a report does not depend on
+ * the amount of images loaded or animations run.
+ * <p>
+ * Each time histogram has one bucket per bound in {@link #TIME_BOUNDS} and an
+ * overflow bucket; bucket i counts the values greater than bound i - 1 and at
+ * most bound i. The queue depth histogram uses {@link #DEPTH_BOUNDS} in the
+ * same way.
+ *
+ * @author Teppo Kurki
+ */
+@SuppressWarnings("serial")
+public class TelemetryReport implements Serializable {
+
+	/** Upper bounds (ms) of the buckets of the time histograms */
+	public static final int[] TIME_BOUNDS = { 16, 32, 64, 125, 250, 500, 1000, 2000, 4000 };
+
+	/** Upper bounds of the buckets of the queue depth histogram */
+	public static final int[] DEPTH_BOUNDS = { 1, 2, 3, 5, 8, 13, 21 };
+
+	/** Length (ms) of the period the report covers */
+	public int period;
+
+	/** Time from starting the load of an image to the image being fetched */
+	public int[] loadLatency = new int[TIME_BOUNDS.length + 1];
+
+	/** Time from an image being fetched to it being decoded */
+	public int[] decodeTime = new int[TIME_BOUNDS.length + 1];
+
+	/** Time from setting an image to a slot to the image being shown */
+	public int[] firstPaint = new int[TIME_BOUNDS.length + 1];
+
+	/** Amount of pending moves each time a move was queued behind an animation */
+	public int[] queueDepth = new int[DEPTH_BOUNDS.length + 1];
+
+	/** Amount of images that failed to load */
+	public int failedLoads;
+
+	/** Amount of animations run */
+	public int animations;
+
+	/** Amount of frames rendered during the animations */
+	public int frames;
+
+	/** Amount of frames missed during the animations */
+	public int droppedFrames;
+
+	/**
+	 * Returns the index of the bucket the value belongs to.
+	 *
+	 * @param bounds
+	 *            Upper bounds of the buckets
+	 * @param value
+	 *            The value
+	 * @return Bucket index, bounds.length for the overflow bucket
+	 */
+	public static int bucket(int[] bounds, double value) {
+		int i = 0;
+		while (i < bounds.length && value > bounds[i]) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Returns the upper bound of the bucket containing the given percentile of
+	 * the values of a histogram, e.g. 95 for the 95th percentile.
+	 *
+	 * @param histogram
+	 *            The histogram
+	 * @param bounds
+	 *            Upper bounds of the buckets of the histogram
+	 * @param percentile
+	 *            Percentile between 0 and 100
+	 * @return Upper bound of the bucket, Integer.MAX_VALUE if the value is in
+	 *         the overflow bucket or -1 if the histogram is empty
+	 */
+	public static int percentile(int[] histogram, int[] bounds, double percentile) {
+		long total = count(histogram);
+		if (total == 0) {
+			return -1;
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= rank && seen > 0) {
+				return i < bounds.length ? bounds[i] : Integer.MAX_VALUE;
+			}
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	/**
+	 * Returns the amount of values in a histogram.
+	 *
+	 * @param histogram
+	 *            The histogram
+	 * @return Sum of the buckets
+	 */
+	public static long count(int[] histogram) {
+		long total = 0;
+		for (int count : histogram) {
+			total += count;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns true if anything was measured during the period.
+	 *
+	 * @return true if the report has measurements
+	 */
+	public boolean hasMeasurements() {
+		return !(animations == 0 && failedLoads == 0 && count(loadLatency) == 0 && count(decodeTime) == 0
+				&& count(firstPaint) == 0 && count(queueDepth) == 0);
+	}
+}
@@ -1,9 +1,12 @@
 package org.tepi.imageviewer.client;
 
 import org.tepi.imageviewer.client.imagepreloader.FitImage;
-import org.tepi.imageviewer.client.imagepreloader.FitImageLoadEvent;
-import org.tepi.imageviewer.client.imagepreloader.FitImageLoadHandler;
+import org.tepi.imageviewer.client.imagepreloader.ImageLoadEvent;
+import org.tepi.imageviewer.client.imagepreloader.ImageLoadHandler;
+import org.tepi.imageviewer.client.imagepreloader.ImagePreloader;
 
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.dom.client.ImageElement;
 import com.google.gwt.dom.client.Style;
 import com.google.gwt.dom.client.Style.BorderStyle;
 import com.google.gwt.dom.client.Style.Position;
@@ -11,12 +14,11 @@ import com.google.gwt.dom.client.Style.Unit;
 import com.google.gwt.dom.client.Style.Visibility;
 import com.google.gwt.event.dom.client.ClickEvent;
 import com.google.gwt.event.dom.client.ClickHandler;
-import com.google.gwt.event.dom.client.LoadEvent;
-import com.google.gwt.event.dom.client.LoadHandler;
 import com.google.gwt.event.dom.client.MouseOutEvent;
 import com.google.gwt.event.dom.client.MouseOutHandler;
 import com.google.gwt.event.dom.client.MouseOverEvent;
 import com.google.gwt.event.dom.client.MouseOverHandler;
+import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.ui.FlowPanel;
 import com.vaadin.client.BrowserInfo;
 
@@ -43,6 +45,25 @@ class VImage extends FlowPanel {
 
 	/** Image element */
 	private FitImage image;
+	/** URI of the image currently shown */
+	private String source;
+	/** Index of the image of the source, or -1 if not known */
+	private int imageIndex = -1;
+	/** Width tier of the rendition of the source */
+	private int sourceTier;
+	/** URI the shown image element was loaded from, null if not loaded */
+	private String loadedSource;
+	/** Time the current source was set, for measuring the time to show it */
+	private double sourceSetTime;
+	/** Load of the current source in progress, or null */
+	private ImageLoadHandler sourceLoad;
+	/** Priority of loading the source of this slot */
+	private int loadPriority;
+	/* Loaded image waiting to be swapped in, and the URI it was loaded from */
+	private FitImage pendingImage;
+	private String pendingSource;
+	/** Should the image be shown once its size and position are written */
+	private boolean revealImage;
 	/** Panel for the loading indicator image */
 	private FlowPanel loading;
 	/** Image index (in relation to the set of visible images) */
@@ -59,6 +80,30 @@ class VImage extends FlowPanel {
 	private int currentHeight;
 	private int currentX;
 
+	/* Maximum size of the image element, calculated by measure() */
+	private int maxImageWidth;
+	private int maxImageHeight;
+
+	/* Style values last written to the elements */
+	private int writtenX = Integer.MIN_VALUE;
+	private int writtenWidth = Integer.MIN_VALUE;
+	private int writtenHeight = Integer.MIN_VALUE;
+	private int writtenImageLeft = Integer.MIN_VALUE;
+	private int writtenImageBottom = Integer.MIN_VALUE;
+
+	private double writtenScale;
+	/** Is the container positioned with a transform instead of left */
+	private boolean writtenTransform;
+
+	/* Opacity of the container during animations, negative when not set */
+	private double opacity = -1;
+	private double writtenOpacity = -1;
+	/** Duration of the CSS transition used for opacity changes, or 0 */
+	private int fadeDuration;
+
+	/** Is a style update queued in the owner's frame scheduler */
+	private boolean dirty;
+
 	/* Animation helper properties; start and end position and width */
 	private int startWidth;
 	private int endWidth;
@@ -79,148 +124,452 @@ class VImage extends FlowPanel {
 		style.setHeight(100, Unit.PCT);
 
 		add(loading);
+
+		/* Create an empty image, replaced by the loaded image of each source */
+		image = createImage(new FitImage());
+		add(image);
+	}
+
+	/* Handlers of the image element events */
+	private final ClickHandler clickHandler = new ClickHandler() {
+		public void onClick(ClickEvent event) {
+			/* Forward image clicks to VImageViewer class */
+			owner.imageClicked(index);
+		}
+	};
+
+	private final MouseOverHandler mouseOverHandler = new MouseOverHandler() {
+		public void onMouseOver(MouseOverEvent event) {
+			if (mouseOverEffects && !maximized) {
+				Style style = image.getElement().getStyle();
+				style.setOpacity(1.0);
+				style.setProperty("filter", "alpha(opacity = 100)");
+			}
+		}
+	};
+
+	private final MouseOutHandler mouseOutHandler = new MouseOutHandler() {
+		public void onMouseOut(MouseOutEvent event) {
+			if (mouseOverEffects && !maximized) {
+				updateImageOpacity();
+			}
+		}
+	};
+
+	/**
+	 * Prepares an image for showing in this slot: adds the event handlers and
+	 * the styling. The image is hidden until it is revealed.
+	 */
+	private FitImage createImage(FitImage image) {
+		image.addClickHandler(clickHandler);
+		image.addMouseOverHandler(mouseOverHandler);
+		image.addMouseOutHandler(mouseOutHandler);
+
+		Style style = image.getElement().getStyle();
+		/* Better image interpolation mode for IE */
+		if (BrowserInfo.get().isIE()) {
+			style.setProperty("-ms-interpolation-mode", "bicubic");
+		}
+		/* Image styling: no borders; hide the image initially */
+		style.setBorderStyle(BorderStyle.NONE);
+		style.setPosition(Position.ABSOLUTE);
+		style.setVisibility(Visibility.HIDDEN);
+		image.setStyleName(IMAGEELEMENT);
+		return image;
 	}
 
 	/**
-	 * Sets image source URI, creates image and attaches click and load
-	 * handlers.
+	 * Sets image source URI. The image is hidden and the loading indicator
+	 * shown until the new image has loaded. Setting the source that is already
+	 * shown does nothing.
 	 * 
 	 * @param uri
 	 *            URI pointing to the image to show
 	 */
 	void setImageSource(String uri) {
-		if (uri == null) {
+		setImageSource(uri, -1, 0);
+	}
+
+	/**
+	 * Sets image source URI to a rendition of the given image. When a larger
+	 * rendition of the image already shown is set, the current image stays
+	 * visible until the larger one has loaded.
+	 * 
+	 * @param uri
+	 *            URI pointing to the image to show
+	 * @param imageIndex
+	 *            Index of the image
+	 * @param tier
+	 *            Width tier of the rendition
+	 */
+	void setImageSource(String uri, int imageIndex, int tier) {
+		if (uri == null || uri.equals(source)) {
 			return;
 		}
-		/* Create image */
-		image = new FitImage();
+		boolean upgrade = imageIndex >= 0 && imageIndex == this.imageIndex && tier > sourceTier
+				&& loadedSource != null;
+		cancelLoad();
+		discardPendingImage();
+		source = uri;
+		sourceSetTime = Duration.currentTimeMillis();
+		this.imageIndex = imageIndex;
+		sourceTier = tier;
+		if (!upgrade) {
+			image.getElement().getStyle().setVisibility(Visibility.HIDDEN);
+			loading.getElement().getStyle().setVisibility(Visibility.VISIBLE);
+			revealImage = false;
+		}
+		final String url = uri;
+		sourceLoad = new ImageLoadHandler() {
+			public void imageLoaded(ImageLoadEvent event) {
+				if (sourceLoad == this) {
+					sourceLoad = null;
+					showLoadedImage(url, event);
+				}
+			}
+		};
+		ImagePreloader.load(uri, loadPriority, sourceLoad);
+	}
 
-		/* Better image interpolation mode for IE */
-		if (BrowserInfo.get().isIE()) {
-			Style style = image.getElement().getStyle();
-			style.setProperty("-ms-interpolation-mode", "bicubic");
+	/**
+	 * Clears the image source and shows the loading indicator until a source is
+	 * set again, e.g. when the URL of the image to show is not yet known.
+	 */
+	void clearImageSource() {
+		if (source == null && imageIndex < 0) {
+			return;
 		}
+		cancelLoad();
+		discardPendingImage();
+		source = null;
+		imageIndex = -1;
+		sourceTier = 0;
+		image.getElement().getStyle().setVisibility(Visibility.HIDDEN);
+		loading.getElement().getStyle().setVisibility(Visibility.VISIBLE);
+		revealImage = false;
+	}
 
-		/* Forward image clicks to VImageViewer class */
-		image.addClickHandler(new ClickHandler() {
-			public void onClick(ClickEvent event) {
-				owner.imageClicked(index);
+	private void cancelLoad() {
+		if (sourceLoad != null) {
+			ImagePreloader.cancel(source, sourceLoad);
+			sourceLoad = null;
+		}
+	}
+
+	/**
+	 * Prepares the image loaded by the preloader for showing. Once the element
+	 * has been decoded, the image is swapped in by the frame scheduler of the
+	 * owner, so that the swap does not interrupt a running animation frame.
+	 */
+	private void showLoadedImage(String url, ImageLoadEvent event) {
+		discardPendingImage();
+		Telemetry telemetry = owner.getTelemetry();
+		if (telemetry != null) {
+			if (event.isLoadFailed()) {
+				telemetry.imageFailed();
+			} else {
+				telemetry.imageLoaded(event.getLoadLatency(), event.getDecodeTime());
+			}
+		}
+		ImageElement element = event.takeImageElement();
+		if (element == null) {
+			pendingImage = createImage(new FitImage());
+			pendingSource = null;
+			owner.getFrameScheduler().scheduleSwap(this);
+			return;
+		}
+		final FitImage loaded = createImage(new FitImage(element, event.getDimensions()));
+		pendingImage = loaded;
+		pendingSource = url;
+		/* Swap in only a decoded image, so the swap never decodes on a frame */
+		ImagePreloader.whenDecoded(element, new Command() {
+			public void execute() {
+				if (pendingImage == loaded) {
+					owner.getFrameScheduler().scheduleSwap(VImage.this);
+				}
 			}
 		});
+	}
 
-		/* Mouse over effects */
-		if (mouseOverEffects && !maximized) {
-			image.addMouseOverHandler(new MouseOverHandler() {
-				public void onMouseOver(MouseOverEvent event) {
-					Style style = image.getElement().getStyle();
-					style.setOpacity(1.0);
-					style.setProperty("filter", "alpha(opacity = 100)");
-				}
-			});
-			image.addMouseOutHandler(new MouseOutHandler() {
-				public void onMouseOut(MouseOutEvent event) {
-					Style style = image.getElement().getStyle();
-					if (!center) {
-						style.setOpacity(0.7);
-						style.setProperty("filter", "alpha(opacity = 70)");
-					} else {
-						style.setOpacity(0.9);
-						style.setProperty("filter", "alpha(opacity = 90)");
-					}
-				}
-			});
+	/**
+	 * Returns a loaded image that was not swapped in to the preloader.
+	 */
+	private void discardPendingImage() {
+		if (pendingImage != null) {
+			releaseImage(pendingImage, pendingSource);
+			pendingImage = null;
+			pendingSource = null;
 		}
+	}
 
-		/* Image styling: no borders; hide the image initially */
-		Style style = image.getElement().getStyle();
-		style.setBorderStyle(BorderStyle.NONE);
-		style.setPosition(Position.ABSOLUTE);
-		style.setVisibility(Visibility.HIDDEN);
+	private static void releaseImage(FitImage image, String url) {
+		if (url != null) {
+			image.getElement().removeAttribute("style");
+			ImagePreloader.releaseImageElement(url, ImageElement.as(image.getElement()));
+		}
+	}
+
+	/**
+	 * Replaces the shown image with the loaded image element, so that the
+	 * image is fetched and decoded only once. The replaced element is returned
+	 * to the preloader for reuse. Called by the frame scheduler.
+	 */
+	void swapImage() {
+		if (pendingImage == null) {
+			return;
+		}
+		int position = getWidgetIndex(image);
+		remove(image);
+		releaseImage(image, loadedSource);
+		image = pendingImage;
+		loadedSource = pendingSource;
+		pendingImage = null;
+		pendingSource = null;
+		insert(image, position);
+		writtenImageLeft = Integer.MIN_VALUE;
+		writtenImageBottom = Integer.MIN_VALUE;
 		if (mouseOverEffects && !maximized) {
-			if (!center) {
-				style.setOpacity(0.7);
-				style.setProperty("filter", "alpha(opacity = 70)");
-			} else {
-				style.setOpacity(0.9);
-				style.setProperty("filter", "alpha(opacity = 90)");
-			}
+			updateImageOpacity();
+		}
+		/* Show the image once it has been sized and positioned */
+		if (loadedSource != null) {
+			revealImage = true;
+		} else {
+			loading.getElement().getStyle().setVisibility(Visibility.HIDDEN);
 		}
+		scheduleStyleUpdate();
+	}
 
-		/* When Image has loaded => show image; hide the loading indicator */
-		image.addFitImageLoadHandler(new FitImageLoadHandler() {
-			public void imageLoaded(FitImageLoadEvent event) {
-				Style style = image.getElement().getStyle();
-				style.setVisibility(Visibility.VISIBLE);
-				style = loading.getElement().getStyle();
-				style.setVisibility(Visibility.HIDDEN);
-			}
-		});
+	/**
+	 * Returns the priority of the load of this slot, lower values are more
+	 * urgent.
+	 */
+	int getLoadPriority() {
+		return loadPriority;
+	}
 
-		/*
-		 * Another load handler to fix image size and position after it has been
-		 * loaded. For some reason calling this from the FitImageLoadHandler
-		 * produces animation glitches in Chrome.
-		 */
-		image.addLoadHandler(new LoadHandler() {
-			public void onLoad(LoadEvent event) {
-				fixImageSizeAndPosition();
-			}
-		});
-		// TODO: Fix the glitch in Safari: The chrome-fix did not help
+	/**
+	 * Cancels the load in progress when the slot is detached. The load is
+	 * requested again if the slot is attached back.
+	 */
+	@Override
+	protected void onUnload() {
+		super.onUnload();
+		if (sourceLoad != null) {
+			ImagePreloader.cancel(source, sourceLoad);
+		}
+	}
 
-		image.setUrl(uri);
-		image.setStyleName(IMAGEELEMENT);
+	@Override
+	protected void onLoad() {
+		super.onLoad();
+		if (sourceLoad != null) {
+			ImagePreloader.load(source, loadPriority, sourceLoad);
+		}
+	}
 
-		add(image);
+	/**
+	 * Resets the styles left behind by animations and applies the opacity
+	 * matching the current mouse over effect settings.
+	 */
+	void resetStyles() {
+		Style style = getElement().getStyle();
+		style.clearOpacity();
+		style.clearProperty("filter");
+		style.clearZIndex();
+		if (fadeDuration > 0) {
+			style.clearProperty("transition");
+			fadeDuration = 0;
+		}
+		opacity = -1;
+		writtenOpacity = -1;
+		if (mouseOverEffects && !maximized) {
+			updateImageOpacity();
+		} else {
+			style = image.getElement().getStyle();
+			style.clearOpacity();
+			style.clearProperty("filter");
+		}
+	}
+
+	private void updateImageOpacity() {
+		Style style = image.getElement().getStyle();
+		if (!center) {
+			style.setOpacity(0.7);
+			style.setProperty("filter", "alpha(opacity = 70)");
+		} else {
+			style.setOpacity(0.9);
+			style.setProperty("filter", "alpha(opacity = 90)");
+		}
+	}
+
+	/**
+	 * Sets the opacity of the whole image container. Used when fading images
+	 * in or out, the style is written with the other batched styles.
+	 */
+	void setContainerOpacity(double opacity) {
+		this.opacity = opacity;
+		scheduleStyleUpdate();
 	}
 
 	/**
-	 * Fixes image element sizing and positioning within its container
+	 * Fades the image container to the given opacity with a CSS transition,
+	 * so the browser runs the fade without per frame style writes.
+	 */
+	void fadeTo(double opacity, int duration) {
+		this.opacity = opacity;
+		fadeDuration = duration;
+		scheduleStyleUpdate();
+	}
+
+	/**
+	 * Fixes image element sizing and positioning within its container. The
+	 * styles are written in a batch with the other images by the frame
+	 * scheduler of the owner.
 	 */
 	void fixImageSizeAndPosition() {
-		if (image == null) {
-			return;
+		scheduleStyleUpdate();
+	}
+
+	private void scheduleStyleUpdate() {
+		if (!dirty) {
+			dirty = true;
+			owner.getFrameScheduler().schedule(this);
 		}
-		/* Fix height */
+	}
+
+	/**
+	 * Calculates the size of the image element. Called by the frame scheduler
+	 * before any styles are written.
+	 */
+	void measure() {
 		int h = currentHeight - 2 * verticalMargin;
-		image.setMaxHeight(h >= 0 ? h : 0);
-		/* Fix width */
+		maxImageHeight = h >= 0 ? h : 0;
 		int w = currentWidth - 2 * horizontalMargin;
-		image.setMaxWidth(w >= 0 ? w : 0);
+		maxImageWidth = w >= 0 ? w : 0;
+	}
+
+	/**
+	 * Writes the changed size and position styles of the container and the
+	 * image element. Called by the frame scheduler.
+	 */
+	void writeStyles() {
+		dirty = false;
+		Style style = getElement().getStyle();
+		if (writtenTransform != owner.transformRendering) {
+			switchRenderingMode(owner.transformRendering);
+		}
+		/*
+		 * In transform rendering mode the layout size is frozen while an
+		 * animation runs; the container is moved and scaled by a transform.
+		 */
+		boolean scaled = writtenTransform && owner.animationRunning && writtenWidth > 0;
+		if (writtenTransform) {
+			double scale = scaled ? (double) currentWidth / writtenWidth : 1;
+			if (writtenX != currentX || writtenScale != scale) {
+				style.setProperty("transform", "translate(" + currentX + "px, 0) scale(" + scale + ")");
+				writtenX = currentX;
+				writtenScale = scale;
+			}
+		} else if (writtenX != currentX) {
+			style.setLeft(currentX, Unit.PX);
+			writtenX = currentX;
+		}
+		if (!scaled && writtenWidth != currentWidth) {
+			style.setWidth(currentWidth, Unit.PX);
+			writtenWidth = currentWidth;
+		}
+		if (!scaled && writtenHeight != currentHeight) {
+			style.setHeight(currentHeight, Unit.PX);
+			writtenHeight = currentHeight;
+		}
+		if (opacity >= 0 && writtenOpacity != opacity) {
+			if (fadeDuration > 0) {
+				style.setProperty("transition", "opacity " + fadeDuration + "ms linear");
+				style.setOpacity(opacity);
+			} else {
+				style.setOpacity(opacity);
+				style.setProperty("filter", "alpha(opacity = " + (int) (100 * opacity) + ")");
+			}
+			writtenOpacity = opacity;
+		}
+		if (scaled && !revealImage) {
+			/* The image is scaled with its container */
+			return;
+		}
+		/* Fix image size */
+		image.setMaxSize(maxImageWidth, maxImageHeight);
 		/* Set vertical margin as distance from bottom */
-		Style style = image.getElement().getStyle();
-		style.setBottom(verticalMargin, Unit.PX);
+		style = image.getElement().getStyle();
+		if (writtenImageBottom != verticalMargin) {
+			style.setBottom(verticalMargin, Unit.PX);
+			writtenImageBottom = verticalMargin;
+		}
 		/* Set horizontal position */
 		int imgWidth = image.getWidth();
-		int left = 0;
 		if (imgWidth > 0) {
+			int left;
 			if (imgWidth < currentWidth - 2 * horizontalMargin) {
 				left = (int) (Math.floor((currentWidth - imgWidth) / 2));
 			} else {
 				left = horizontalMargin;
 			}
-			if (!style.getLeft().equals(left + "px")) {
+			if (writtenImageLeft != left) {
 				style.setLeft(left, Unit.PX);
+				writtenImageLeft = left;
+			}
+		}
+		if (revealImage) {
+			revealImage = false;
+			style.setVisibility(Visibility.VISIBLE);
+			if (owner.getTelemetry() != null) {
+				owner.getTelemetry().imagePainted(Duration.currentTimeMillis() - sourceSetTime);
 			}
+			loading.getElement().getStyle().setVisibility(Visibility.HIDDEN);
 		}
 	}
 
+	/**
+	 * Switches the container between left positioning and transform
+	 * positioning.
+	 */
+	private void switchRenderingMode(boolean transform) {
+		Style style = getElement().getStyle();
+		if (transform) {
+			style.setLeft(0, Unit.PX);
+		} else {
+			style.clearProperty("transform");
+		}
+		writtenTransform = transform;
+		writtenX = Integer.MIN_VALUE;
+		writtenScale = 0;
+	}
+
+	String getImageSource() {
+		return source;
+	}
+
+	int getImageIndex() {
+		return imageIndex;
+	}
+
+	int getSourceTier() {
+		return sourceTier;
+	}
+
 	void setCurrentX(int currentX) {
 		this.currentX = currentX;
-		Style style = getElement().getStyle();
-		style.setLeft(currentX, Unit.PX);
+		scheduleStyleUpdate();
 	}
 
 	void setCurrentWidth(int currentWidth) {
 		this.currentWidth = currentWidth;
-		Style style = getElement().getStyle();
-		style.setWidth(currentWidth, Unit.PX);
+		scheduleStyleUpdate();
 	}
 
 	void setCurrentHeight(int currentHeight) {
 		this.currentHeight = currentHeight;
-		Style style = getElement().getStyle();
-		style.setHeight(currentHeight, Unit.PX);
+		scheduleStyleUpdate();
 	}
 
 	void initAnimation(int endWidth, int endPosition) {
@@ -230,6 +579,13 @@ class VImage extends FlowPanel {
 		this.endPosition = endPosition;
 	}
 
+	void initAnimation(int startWidth, int startPosition, int endWidth, int endPosition) {
+		this.startWidth = startWidth;
+		this.startPosition = startPosition;
+		this.endWidth = endWidth;
+		this.endPosition = endPosition;
+	}
+
 	int getStartWidth() {
 		return startWidth;
 	}
@@ -262,8 +618,30 @@ class VImage extends FlowPanel {
 		return currentX;
 	}
 
+	/**
+	 * Sets the index of the slot. The image of the slot is loaded with a
+	 * priority matching its distance from the center slot.
+	 */
 	void setIndex(int index) {
 		this.index = index;
+		setLoadPriority(Math.abs(index - owner.getSlotCount() / 2));
+	}
+
+	private void setLoadPriority(int loadPriority) {
+		if (this.loadPriority != loadPriority) {
+			this.loadPriority = loadPriority;
+			if (sourceLoad != null) {
+				ImagePreloader.setPriority(source, loadPriority);
+			}
+		}
+	}
+
+	/**
+	 * Moves a load in progress behind the loads of the visible slots. Used for
+	 * slots that have left the view.
+	 */
+	void demoteLoad() {
+		setLoadPriority(Integer.MAX_VALUE);
 	}
 
 	void setOwner(VImageViewer owner) {
@@ -3,7 +3,12 @@ package org.tepi.imageviewer.client;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.tepi.imageviewer.client.imagepreloader.ImageLoadEvent;
+import org.tepi.imageviewer.client.imagepreloader.ImageLoadHandler;
+import org.tepi.imageviewer.client.imagepreloader.ImagePreloader;
+
 import com.google.gwt.animation.client.Animation;
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.dom.client.Style;
 import com.google.gwt.dom.client.Style.Overflow;
 import com.google.gwt.dom.client.Style.Position;
@@ -29,13 +34,44 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
 
     interface ImageSelectionListener {
         public void centerImageSelected(int imageIndex);
+
+        /** Called when a running animation has finished */
+        public void animationFinished();
+    }
+
+    interface ImageUrlProvider {
+        /**
+         * Returns the URL of a rendition of the image with the given index, or
+         * null if the image is not currently available.
+         * 
+         * @param tier
+         *            Width tier of the rendition, as returned by
+         *            {@link #selectTier(int)}
+         */
+        public String getImageUrl(int imageIndex, int tier);
+
+        /**
+         * Returns the smallest width tier covering the given pixel width, or
+         * {@link VImageViewer#ORIGINAL} if no tier is wide enough.
+         */
+        public int selectTier(int pixelWidth);
     }
 
     private ImageSelectionListener listener;
 
+    private ImageUrlProvider urlProvider;
+
     /** Style name */
     private static final String CLASSNAME = "v-imageviewer";
 
+    /** Width tier of the original images */
+    static final int ORIGINAL = Integer.MAX_VALUE;
+
+    /** Time (ms) ahead for which images are prefetched at the current speed */
+    private static final int PREFETCH_LOOKAHEAD = 500;
+    /** Time (ms) without moves after which the navigation speed is reset */
+    private static final int NAVIGATION_PAUSE = 1000;
+
     /** Widget root container */
     private final FlowPanel panelRoot;
     /** Container for the images */
@@ -68,22 +104,65 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
     /** Each additional side image will be sized down by this factor */
     float sideImageReducePercentage;
 
-    /** List of URLs pointing to the images */
-    String[] urls = null;
     /**
      * Container for visible images NOTE: Contains also two images that are
      * hidden on both the left and right side of the actually visible images.
      */
     private VImage[] visibleImages;
+    /** Horizontal positions of the slots, as calculated by calculateLayout */
+    private int[] slotX = new int[0];
+    /** Widths of the slots, as calculated by calculateLayout */
+    private int[] slotWidth = new int[0];
 
     /** Are animations enabled */
     boolean animationEnabled;
     /** Is an animation running */
     boolean animationRunning;
+    /**
+     * Are the slots positioned and scaled with CSS transforms, so that the
+     * animations do not cause relayouts
+     */
+    boolean transformRendering;
     /** Duration of one animation in milliseconds */
     int animationDuration;
-    /** Queued animations, to be executed after the previous animation finishes */
-    private List<Boolean> queuedAnimations = new ArrayList<Boolean>();
+    /**
+     * Steps requested while an animation was running, to be executed as one
+     * animation after it finishes. Negative values move left.
+     */
+    private int pendingSteps;
+    /** Image index to jump to after the running animation finishes, or -1 */
+    private int pendingJump = -1;
+    /** Should the listener be notified of the pending jump */
+    private boolean pendingJumpNotify;
+    /** Should the listener be notified when the running move finishes */
+    private boolean notifyMove = true;
+    /** Spare slots, used for the incoming images of jump animations */
+    private VImage[] spareImages;
+
+    /** Maximum amount of images prefetched ahead of the navigation */
+    int prefetchBudget = 4;
+    /** Direction of the latest moves: 1 towards higher indexes, -1 lower */
+    private int navigationDirection;
+    /** Smoothed navigation speed in images per second */
+    private double navigationSpeed;
+    /** Time of the latest move */
+    private double lastMoveTime;
+    /** URLs currently requested from the preloader by prefetch */
+    private List<String> prefetchedUrls = new ArrayList<String>();
+    /** Handler of the prefetch loads; loaded images are kept by the preloader */
+    private final ImageLoadHandler prefetchHandler = new ImageLoadHandler() {
+        public void imageLoaded(ImageLoadEvent event) {
+        }
+    };
+
+    /** Batches the style updates of the slots */
+    private final FrameScheduler frameScheduler = new FrameScheduler(this);
+    /** Frame time statistics of the animations, or null if not measured */
+    private FrameStatistics frameStatistics;
+    /** Are the frame time statistics logged */
+    private boolean frameStatisticsLogged;
+    /** Performance measurements reported to the server, or null if disabled */
+    private Telemetry telemetry;
 
     public VImageViewer() {
         /* Create widget's root panel */
@@ -125,13 +204,9 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
      */
     public void onKeyDown(KeyDownEvent event) {
         if (KeyCodes.KEY_HOME == event.getNativeKeyCode()) {
-            centerImageIndex = 0;
-            renderImages();
-            updateCenterImage();
+            showImage(0, true);
         } else if (KeyCodes.KEY_END == event.getNativeKeyCode()) {
-            centerImageIndex = amountOfImages - 1;
-            renderImages();
-            updateCenterImage();
+            showImage(amountOfImages - 1, true);
         } else if (event.isRightArrow() || event.isDownArrow()) {
             moveImages(false);
         } else if (event.isLeftArrow() || event.isUpArrow()) {
@@ -147,47 +222,38 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
     }
 
     /**
-     * Renders visible images to the image container
+     * Renders visible images to the image container. The VImage slots are
+     * reused between renders; only the slots whose image has changed get a
+     * new image source.
      */
     void renderImages() {
         if (amountOfImages <= 0) {
-            panelRoot.clear();
+            imageContainer.clear();
+            visibleImages = null;
+            spareImages = null;
             return;
         }
-        /* Empty the panel initially */
-        imageContainer.clear();
         /* Determine amount of images to render */
         int imagesToRender = 1 + 2 * sideImages + 2;
+        ensureSlotCount(imagesToRender);
+        /* Layout is needed for choosing the image renditions */
+        calculateLayout();
         /* Calculate starting point */
-        int startingPoint = centerImageIndex - sideImages;
-        if (startingPoint < 0) {
-            startingPoint += urls.length;
-        }
-        /* Add visible images */
-        visibleImages = new VImage[imagesToRender];
+        int startingPoint = getFirstImageIndex(imagesToRender);
+        /* Update visible images */
         for (int i = 0; i < imagesToRender; i++) {
-            VImage img = new VImage();
-            if (i == 0 || i == imagesToRender - 1) {
-                img.setVisible(false);
-            }
-            if (mouseOverEffects) {
-                img.setMouseOverEffects(true);
-                if (i == imagesToRender / 2) {
-                    img.setCenter(true);
-                }
-                if (sideImages == 0 && previousSideImages != 0) {
-                    img.setMaximized(true);
-                }
-            }
+            VImage img = visibleImages[i];
+            img.setVisible(i != 0 && i != imagesToRender - 1);
+            img.setMouseOverEffects(mouseOverEffects);
+            img.setCenter(i == imagesToRender / 2);
+            img.setMaximized(sideImages == 0 && previousSideImages != 0);
             img.setIndex(i);
-            img.setOwner(this);
-            img.setImageSource(urls[startingPoint]);
+            setSlotImage(i, startingPoint);
             img.setHorizontalMargin(paddingX);
             img.setVerticalMargin(paddingY);
-            visibleImages[i] = img;
-            imageContainer.add(img);
+            img.resetStyles();
             startingPoint++;
-            if (startingPoint > urls.length - 1) {
+            if (startingPoint > amountOfImages - 1) {
                 startingPoint = 0;
             }
         }
@@ -195,6 +261,153 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
         resizeImages();
     }
 
+    /**
+     * Makes sure there is the given amount of VImage slots. Existing slots are
+     * kept centered so that the images around the center image stay loaded,
+     * e.g. when the center image is maximized.
+     * 
+     * @param slots
+     *            Total amount of slots, including the hidden ones
+     */
+    private void ensureSlotCount(int slots) {
+        if (visibleImages != null && visibleImages.length == slots) {
+            return;
+        }
+        VImage[] oldImages = visibleImages != null ? visibleImages
+                : new VImage[0];
+        visibleImages = new VImage[slots];
+        int shift = (slots - oldImages.length) / 2;
+        for (int i = 0; i < oldImages.length; i++) {
+            if (i + shift >= 0 && i + shift < slots) {
+                visibleImages[i + shift] = oldImages[i];
+            } else {
+                imageContainer.remove(oldImages[i]);
+            }
+        }
+        for (int i = 0; i < slots; i++) {
+            if (visibleImages[i] == null) {
+                VImage img = new VImage();
+                img.setOwner(this);
+                visibleImages[i] = img;
+                imageContainer.add(img);
+            }
+        }
+    }
+
+    /**
+     * Rotates the slots by one position after the images have moved one step,
+     * so that every slot keeps showing the same image. Only the slot that
+     * wraps around to the other end will get a new image source.
+     * 
+     * @param left
+     *            true if the images moved left; false if they moved right
+     */
+    private void shiftSlots(boolean left) {
+        if (visibleImages == null) {
+            return;
+        }
+        int last = visibleImages.length - 1;
+        if (left) {
+            VImage wrapped = visibleImages[last];
+            System.arraycopy(visibleImages, 0, visibleImages, 1, last);
+            visibleImages[0] = wrapped;
+        } else {
+            VImage wrapped = visibleImages[0];
+            System.arraycopy(visibleImages, 1, visibleImages, 0, last);
+            visibleImages[last] = wrapped;
+        }
+    }
+
+    /**
+     * Updates the image sources of the rendered images whose URL has changed,
+     * without re-rendering the other images.
+     */
+    void updateImageSources() {
+        if (visibleImages == null || amountOfImages <= 0) {
+            return;
+        }
+        int imageIndex = getFirstImageIndex(visibleImages.length);
+        for (int i = 0; i < visibleImages.length; i++) {
+            setSlotImage(i, imageIndex);
+            imageIndex = (imageIndex + 1) % amountOfImages;
+        }
+        prefetch();
+    }
+
+    /**
+     * Returns the index of the image shown in the first (hidden) slot.
+     * 
+     * @param imagesToRender
+     *            Total amount of slots, including the hidden ones
+     */
+    private int getFirstImageIndex(int imagesToRender) {
+        int index = (centerImageIndex - imagesToRender / 2) % amountOfImages;
+        return index < 0 ? index + amountOfImages : index;
+    }
+
+    /**
+     * Sets the given image to a slot, in the smallest rendition covering the
+     * pixel width of the slot. A slot already showing a larger rendition of
+     * the same image keeps it.
+     * 
+     * @param slot
+     *            Index of the slot
+     * @param imageIndex
+     *            Index of the image
+     */
+    private void setSlotImage(int slot, int imageIndex) {
+        if (urlProvider == null) {
+            return;
+        }
+        VImage img = visibleImages[slot];
+        int tier = urlProvider.selectTier(getSlotPixelWidth(slot));
+        if (img.getImageIndex() == imageIndex && img.getSourceTier() > tier) {
+            tier = img.getSourceTier();
+        }
+        String url = urlProvider.getImageUrl(imageIndex, tier);
+        if (url == null) {
+            /*
+             * The image is outside the window the server has registered; it
+             * is set again once the window has followed the navigation.
+             */
+            img.clearImageSource();
+        } else if (!url.equals(img.getImageSource())) {
+            img.setImageSource(url, imageIndex, tier);
+            img.fixImageSizeAndPosition();
+        }
+    }
+
+    /**
+     * Returns the width of a slot in device pixels. The hidden slots at both
+     * ends use the width of their neighbour, which they are moved to next.
+     */
+    private int getSlotPixelWidth(int slot) {
+        if (slotWidth.length < 3) {
+            return 0;
+        }
+        int last = slotWidth.length - 1;
+        int width = slotWidth[slot == 0 ? 1 : slot == last ? last - 1 : slot];
+        return (int) Math.ceil(width * getDevicePixelRatio());
+    }
+
+    private static native double getDevicePixelRatio()
+    /*-{
+        return $wnd.devicePixelRatio || 1;
+    }-*/;
+
+    /**
+     * Upgrades the slots whose image is shown in a smaller rendition than
+     * their current width needs, e.g. when the center image is maximized.
+     */
+    private void upgradeImageSources() {
+        for (int i = 0; i < visibleImages.length; i++) {
+            int imageIndex = visibleImages[i].getImageIndex();
+            if (imageIndex >= 0 && imageIndex < amountOfImages) {
+                setSlotImage(i, imageIndex);
+            }
+        }
+    }
+
     /**
      * Calculates correct sizes for all visible images and sets them to the
      * VImage objects.
@@ -203,32 +416,48 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
         if (visibleImages == null || visibleImages.length == 0) {
             return;
         }
+        calculateLayout();
+        for (int i = 0; i < visibleImages.length; i++) {
+            visibleImages[i].setCurrentWidth(slotWidth[i]);
+            visibleImages[i].setCurrentHeight(currentHeight);
+            visibleImages[i].setCurrentX(slotX[i]);
+        }
+        if (!animationRunning) {
+            upgradeImageSources();
+        }
+        frameScheduler.flush();
+    }
+
+    /**
+     * Calculates the widths and horizontal positions of all slots to the
+     * slotWidth and slotX arrays.
+     */
+    private void calculateLayout() {
         /* Get amount of images and center index */
         int images = visibleImages.length;
         int center = images / 2;
         int usedWidth = 0;
+        if (slotX.length != images) {
+            slotX = new int[images];
+            slotWidth = new int[images];
+        }
         /* Special case: only 1 image visible -> use all available space */
         if (sideImages == 0) {
-            visibleImages[center].setCurrentWidth(currentWidth);
-            visibleImages[center].setCurrentHeight(currentHeight);
-            visibleImages[0].setCurrentWidth(0);
-            visibleImages[0].setCurrentX(-2);
-            visibleImages[2].setCurrentWidth(0);
-            visibleImages[2].setCurrentX(currentWidth + 2);
-            for (int i = 0; i < visibleImages.length; i++) {
-                visibleImages[i].fixImageSizeAndPosition();
-            }
+            slotWidth[center] = currentWidth;
+            slotX[center] = 0;
+            slotWidth[0] = 0;
+            slotX[0] = -2;
+            slotWidth[2] = 0;
+            slotX[2] = currentWidth + 2;
             return;
         }
 
         /* Set center image size */
-        visibleImages[center].setCurrentWidth(Math.round(centerImageWidth
-                * currentWidth));
+        slotWidth[center] = Math.round(centerImageWidth * currentWidth);
         usedWidth += Math.round((centerImageWidth * currentWidth));
-        visibleImages[center].setCurrentHeight(currentHeight);
         /* Set center image position */
-        visibleImages[center].setCurrentX(Math
-                .round(((1 - centerImageWidth) / 2 * currentWidth)));
+        slotX[center] = Math
+                .round(((1 - centerImageWidth) / 2 * currentWidth));
 
         /* Set side image sizes and positions */
         int nextWidth = 0;
@@ -246,22 +475,17 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
                 nextWidth = 0;
             }
             /* Side image on left */
-            visibleImages[center - 1 - i].setCurrentWidth(nextWidth);
-            visibleImages[center - 1 - i].setCurrentHeight(currentHeight);
+            slotWidth[center - 1 - i] = nextWidth;
             /* Side image on right */
-            visibleImages[center + 1 + i].setCurrentWidth(nextWidth);
-            visibleImages[center + 1 + i].setCurrentHeight(currentHeight);
+            slotWidth[center + 1 + i] = nextWidth;
             /* Update amount of width used */
             usedWidth += 2 * nextWidth;
             /* Set image positions */
             leftPosition -= nextWidth;
-            visibleImages[center - 1 - i].setCurrentX(leftPosition);
-            visibleImages[center + 1 + i].setCurrentX(rightPosition);
+            slotX[center - 1 - i] = leftPosition;
+            slotX[center + 1 + i] = rightPosition;
             rightPosition += nextWidth;
         }
-        for (int i = 0; i < visibleImages.length; i++) {
-            visibleImages[i].fixImageSizeAndPosition();
-        }
     }
 
     /**
@@ -273,17 +497,9 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
      *            Index of the clicked image; relative to visibleImages array.
      */
     void imageClicked(int index) {
-        int offset = visibleImages.length / 2 - index;
-        if (offset > 0) {
-            while (offset > 0) {
-                moveImages(true);
-                offset--;
-            }
-        } else if (offset < 0) {
-            while (offset < 0) {
-                moveImages(false);
-                offset++;
-            }
+        int offset = index - visibleImages.length / 2;
+        if (offset != 0) {
+            moveImages(offset);
         } else {
             /* Only handle minimize/maximize when other animation are finished */
             if (!animationRunning) {
@@ -326,6 +542,94 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
         this.listener = listener;
     }
 
+    void setImageUrlProvider(ImageUrlProvider urlProvider) {
+        this.urlProvider = urlProvider;
+    }
+
+    /**
+     * Switches between positioning the slots with left/width styles and
+     * with translate/scale transforms.
+     */
+    void setTransformRendering(boolean transformRendering) {
+        if (this.transformRendering != transformRendering) {
+            this.transformRendering = transformRendering;
+            setStyleName(CLASSNAME + "-transform", transformRendering);
+            resizeImages();
+        }
+    }
+
+    /** Returns the amount of slots, including the hidden ones on both sides */
+    int getSlotCount() {
+        return visibleImages == null ? 0 : visibleImages.length;
+    }
+
+    FrameScheduler getFrameScheduler() {
+        return frameScheduler;
+    }
+
+    /**
+     * Enables or disables logging of the frame time statistics of each
+     * animation.
+     */
+    void setFrameStatisticsEnabled(boolean enabled) {
+        frameStatisticsLogged = enabled;
+        updateFrameStatistics();
+    }
+
+    /**
+     * Enables or disables collecting the performance measurements reported
+     * to the server. Disabling discards the measurements not yet taken.
+     */
+    void setTelemetryEnabled(boolean enabled) {
+        if (enabled != (telemetry != null)) {
+            telemetry = enabled ? new Telemetry() : null;
+            updateFrameStatistics();
+        }
+    }
+
+    /**
+     * Returns the collected performance measurements, or null if telemetry
+     * is disabled.
+     */
+    Telemetry getTelemetry() {
+        return telemetry;
+    }
+
+    /** Frames are measured when they are either logged or reported */
+    private void updateFrameStatistics() {
+        boolean measured = frameStatisticsLogged || telemetry != null;
+        if (measured != (frameStatistics != null)) {
+            frameStatistics = measured ? new FrameStatistics() : null;
+        }
+        if (frameStatistics != null) {
+            frameStatistics.setLogged(frameStatisticsLogged);
+        }
+    }
+
+    /**
+     * Writes the style updates of the current animation frame in one batch
+     * and records the frame time.
+     */
+    private void animationFrame() {
+        frameScheduler.flush();
+        if (frameStatistics != null) {
+            frameStatistics.frame();
+        }
+    }
+
+    private void startFrameStatistics() {
+        if (frameStatistics != null) {
+            frameStatistics.start();
+        }
+    }
+
+    private void stopFrameStatistics() {
+        if (frameStatistics != null && frameStatistics.stop() && telemetry != null) {
+            telemetry.animationFinished(frameStatistics.getFrames(),
+                    frameStatistics.getDroppedFrames());
+        }
+    }
+
     void fixSideImageCount() {
         if (amountOfImages < 3) {
             sideImages = 0;
@@ -335,59 +639,296 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
     }
 
     /**
-     * Moves the image set one step left or right. Animates the movement if
-     * animations are enabled.
+     * Brings the image with the given index to the center. Distances that fit
+     * within the visible slots are animated step by step. Longer distances are
+     * animated as a direct jump where the current images slide out and the
+     * target images slide in, so the cost does not depend on the distance.
+     * 
+     * @param imageIndex
+     *            Index of the image to center
+     * @param notify
+     *            true to notify the listener of the new center image
+     */
+    void showImage(int imageIndex, boolean notify) {
+        if (imageIndex < 0 || imageIndex > amountOfImages - 1) {
+            return;
+        }
+        if (visibleImages == null) {
+            centerImageIndex = imageIndex;
+            return;
+        }
+        if (animationRunning) {
+            pendingJump = imageIndex;
+            pendingJumpNotify = notify;
+            pendingSteps = 0;
+            return;
+        }
+        if (imageIndex == centerImageIndex) {
+            return;
+        }
+        VImage center = visibleImages[visibleImages.length / 2];
+        String url = urlProvider == null ? null : urlProvider.getImageUrl(
+                imageIndex, center.getSourceTier());
+        if (url != null && url.equals(center.getImageSource())) {
+            /* Same image is already centered; only its index has changed */
+            centerImageIndex = imageIndex;
+            updateImageSources();
+            return;
+        }
+        int steps = imageIndex - centerImageIndex;
+        int shortest = steps;
+        if (Math.abs(steps) > amountOfImages / 2) {
+            shortest = steps > 0 ? steps - amountOfImages : steps
+                    + amountOfImages;
+        }
+        if (Math.abs(shortest) <= visibleImages.length / 2) {
+            notifyMove = notify;
+            moveImages(shortest);
+        } else if (animationEnabled) {
+            runJumpAnimation(imageIndex, steps < 0, notify);
+        } else {
+            centerImageIndex = imageIndex;
+            renderImages();
+            if (notify) {
+                updateCenterImage();
+            }
+        }
+    }
+
+    /**
+     * Animates a jump directly to the given image. The target images are
+     * rendered to the spare slots, which slide in while the current slots
+     * slide out. Only the slots visible at the start or at the end of the
+     * jump exist.
      * 
+     * @param imageIndex
+     *            Index of the image to center
      * @param left
-     *            true to move left; false to move right
+     *            true if the target is on the left side
+     * @param notify
+     *            true to notify the listener when the jump finishes
      */
-    private void moveImages(final boolean left) {
-        if (animationEnabled && !animationRunning) {
-            animationRunning = true;
-            for (VImage img : visibleImages) {
-                img.setVisible(true);
+    private void runJumpAnimation(int imageIndex, boolean left,
+            final boolean notify) {
+        animationRunning = true;
+        final VImage[] outgoing = visibleImages;
+        if (spareImages == null || spareImages.length != outgoing.length) {
+            if (spareImages != null) {
+                for (VImage img : spareImages) {
+                    imageContainer.remove(img);
+                }
             }
-            /* Set initial and target values to images */
-            setInitialAndTargetValuesToImages(left);
-            Animation animation = new Animation() {
-                @Override
-                protected void onUpdate(double progress) {
-                    if (animationRunning) {
-                        for (VImage img : visibleImages) {
-                            updateAnimatedPositionAndWidth(img, progress);
-                            img.getElement().getStyle().clearZIndex();
-                        }
-                        if (progress >= 1) {
-                            finishAnimation(left);
-                        }
+            spareImages = new VImage[outgoing.length];
+            for (int i = 0; i < spareImages.length; i++) {
+                VImage img = new VImage();
+                img.setOwner(this);
+                img.setVisible(false);
+                spareImages[i] = img;
+                imageContainer.add(img);
+            }
+        }
+        final VImage[] incoming = spareImages;
+        spareImages = null;
+        /* Render the target images to the spare slots */
+        visibleImages = incoming;
+        centerImageIndex = imageIndex;
+        renderImages();
+        /* Slide the current images out and the target images in */
+        int offset = left ? currentWidth : -currentWidth;
+        for (int i = 0; i < incoming.length; i++) {
+            outgoing[i].initAnimation(outgoing[i].getCurrentWidth(),
+                    outgoing[i].getCurrentX(), outgoing[i].getCurrentWidth(),
+                    outgoing[i].getCurrentX() + offset);
+            incoming[i].initAnimation(slotWidth[i], slotX[i] - offset,
+                    slotWidth[i], slotX[i]);
+            updateAnimatedPositionAndWidth(incoming[i], 0);
+        }
+        frameScheduler.flush();
+        startFrameStatistics();
+        Animation animation = new Animation() {
+            @Override
+            protected void onUpdate(double progress) {
+                if (animationRunning) {
+                    for (int i = 0; i < incoming.length; i++) {
+                        updateAnimatedPositionAndWidth(outgoing[i], progress);
+                        updateAnimatedPositionAndWidth(incoming[i], progress);
+                    }
+                    animationFrame();
+                    if (progress >= 1) {
+                        finishJump(outgoing, notify);
                     }
                 }
-            };
-            animation.run(animationDuration);
-        } else if (animationEnabled && animationRunning) {
-            queuedAnimations.add(left);
+            }
+        };
+        animation.run(animationDuration);
+    }
+
+    /**
+     * Finishes a jump animation; hides the slots that slid out and keeps them
+     * as the spare slots for the next jump.
+     */
+    private void finishJump(VImage[] outgoing, boolean notify) {
+        animationRunning = false;
+        stopFrameStatistics();
+        for (VImage img : outgoing) {
+            img.setVisible(false);
+            img.demoteLoad();
+        }
+        spareImages = outgoing;
+        resizeImages();
+        runPendingAnimations();
+        if (notify) {
+            updateCenterImage();
+        }
+        if (!animationRunning && listener != null) {
+            listener.animationFinished();
+        }
+    }
+
+    /**
+     * Starts the jump or the steps requested while the previous animation was
+     * running.
+     */
+    private void runPendingAnimations() {
+        if (pendingJump != -1) {
+            int imageIndex = pendingJump;
+            pendingJump = -1;
+            showImage(imageIndex, pendingJumpNotify);
+        } else if (pendingSteps != 0) {
+            moveImages(0);
+        }
+    }
+
+    /**
+     * Moves the image set one step left or right. Animates the movement if
+     * animations are enabled.
+     * 
+     * @param left
+     *            true to move left; false to move right
+     */
+    private void moveImages(boolean left) {
+        moveImages(left ? -1 : 1);
+    }
+
+    /**
+     * Moves the image set by the given amount of steps. If an animation is
+     * already running, the steps are added to the pending steps, which are all
+     * animated as one transition after the running animation finishes.
+     * 
+     * @param steps
+     *            Amount of steps to move; negative values move left
+     */
+    private void moveImages(int steps) {
+        if (visibleImages == null) {
+            return;
+        }
+        if (steps != 0) {
+            trackNavigation(steps);
+        }
+        pendingSteps += steps;
+        if (animationRunning && steps != 0 && telemetry != null) {
+            telemetry.movesQueued(Math.abs(pendingSteps));
+        }
+        if (animationRunning || pendingSteps == 0) {
+            return;
+        }
+        if (animationEnabled) {
+            runMoveAnimation();
         } else {
+            int count = Math.abs(pendingSteps);
+            boolean left = pendingSteps < 0;
+            pendingSteps = 0;
+            for (int i = 0; i < count - 1; i++) {
+                stepImages(left);
+            }
             finishAnimation(left);
         }
     }
 
     /**
-     * Sets start and end widths and positions to the visible images.
+     * Animates all pending steps as one transition of animationDuration
+     * milliseconds. The slots are shifted when each intermediate step is
+     * passed; the images are rendered only once, when the transition ends.
+     */
+    private void runMoveAnimation() {
+        final boolean left = pendingSteps < 0;
+        final int steps = Math.abs(pendingSteps);
+        pendingSteps = 0;
+        animationRunning = true;
+        for (VImage img : visibleImages) {
+            img.setVisible(true);
+            img.getElement().getStyle().clearZIndex();
+        }
+        /* Set initial and target values to images */
+        setInitialAndTargetValuesToImages(left);
+        startFrameStatistics();
+        Animation animation = new Animation() {
+            private int stepsDone;
+
+            @Override
+            protected void onUpdate(double progress) {
+                if (animationRunning) {
+                    double position = progress * steps;
+                    while (stepsDone < steps - 1 && position >= stepsDone + 1) {
+                        stepImages(left);
+                        setInitialAndTargetValuesToImages(left);
+                        stepsDone++;
+                    }
+                    double stepProgress = progress >= 1 ? 1 : position
+                            - stepsDone;
+                    for (VImage img : visibleImages) {
+                        updateAnimatedPositionAndWidth(img, stepProgress);
+                    }
+                    animationFrame();
+                    if (progress >= 1) {
+                        finishAnimation(left);
+                    }
+                }
+            }
+        };
+        animation.run(animationDuration);
+    }
+
+    /**
+     * Sets start and end widths and positions to the visible images. Each
+     * slot moves to the layout position of its neighbour; the slot at the far
+     * end stays in place.
      * 
      * @param left
      *            true to move left; false to move right
      */
     private void setInitialAndTargetValuesToImages(boolean left) {
-        for (int i = 0; i < visibleImages.length - 1; i++) {
-            if (left) {
-                visibleImages[i].initAnimation(
-                        visibleImages[i + 1].getCurrentWidth(),
-                        visibleImages[i + 1].getCurrentX());
-            } else {
-                visibleImages[i + 1].initAnimation(
-                        visibleImages[i].getCurrentWidth(),
-                        visibleImages[i].getCurrentX());
-            }
+        int last = visibleImages.length - 1;
+        for (int i = 0; i <= last; i++) {
+            int target = left ? Math.min(i + 1, last) : Math.max(i - 1, 0);
+            visibleImages[i].initAnimation(slotWidth[i], slotX[i],
+                    slotWidth[target], slotX[target]);
+        }
+    }
+
+    /**
+     * Executes one intermediate step of a multi-step move: updates the center
+     * index and shifts the slots, giving a new image source only to the slot
+     * that wraps around.
+     * 
+     * @param left
+     *            true to move left; false to move right
+     */
+    private void stepImages(boolean left) {
+        centerImageIndex = left ? centerImageIndex - 1 : centerImageIndex + 1;
+        if (centerImageIndex < 0) {
+            centerImageIndex = amountOfImages - 1;
+        } else if (centerImageIndex > amountOfImages - 1) {
+            centerImageIndex = 0;
+        }
+        shiftSlots(left);
+        int last = visibleImages.length - 1;
+        int wrapped = left ? 0 : last;
+        int imageIndex = getFirstImageIndex(visibleImages.length);
+        setSlotImage(wrapped, left ? imageIndex : (imageIndex + last)
+                % amountOfImages);
+        for (int i = 0; i <= last; i++) {
+            visibleImages[i].setIndex(i);
         }
     }
 
@@ -430,6 +971,7 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
      */
     private void finishAnimation(boolean left) {
         animationRunning = false;
+        stopFrameStatistics();
         centerImageIndex = left ? centerImageIndex - 1 : centerImageIndex + 1;
         if (left && centerImageIndex < 0) {
             centerImageIndex = amountOfImages - 1;
@@ -437,13 +979,85 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
         if (!left && centerImageIndex > amountOfImages - 1) {
             centerImageIndex = 0;
         }
+        shiftSlots(left);
         renderImages();
-        if (!queuedAnimations.isEmpty()) {
-            boolean nextAnimation = queuedAnimations.get(0);
-            queuedAnimations.remove(0);
-            moveImages(nextAnimation);
+        prefetch();
+        boolean notify = notifyMove;
+        notifyMove = true;
+        runPendingAnimations();
+        if (notify) {
+            updateCenterImage();
+        }
+        if (!animationRunning && listener != null) {
+            listener.animationFinished();
         }
-        updateCenterImage();
+    }
+
+    /**
+     * Updates the direction and speed of navigation. Reversing the direction
+     * cancels the prefetches made for the previous direction.
+     */
+    private void trackNavigation(int steps) {
+        double now = Duration.currentTimeMillis();
+        int direction = steps > 0 ? 1 : -1;
+        double elapsed = Math.max(1, now - lastMoveTime);
+        if (direction != navigationDirection) {
+            cancelPrefetch(new ArrayList<String>());
+            navigationSpeed = 0;
+        } else if (elapsed > NAVIGATION_PAUSE) {
+            navigationSpeed = 0;
+        } else {
+            navigationSpeed = (navigationSpeed + Math.abs(steps) * 1000 / elapsed) / 2;
+        }
+        navigationDirection = direction;
+        lastMoveTime = now;
+    }
+
+    /**
+     * Asks the preloader for the images following the outermost slot in the
+     * direction of navigation, so that they have loaded when they are
+     * revealed. The faster the navigation, the more images are prefetched, up
+     * to prefetchBudget. Only images within the window registered by the
+     * server can be prefetched.
+     */
+    private void prefetch() {
+        List<String> urls = new ArrayList<String>();
+        if (navigationDirection != 0 && visibleImages != null
+                && urlProvider != null && amountOfImages > visibleImages.length) {
+            /* Images reached during the lookahead time */
+            int count = Math.min(prefetchBudget,
+                    1 + (int) (navigationSpeed * PREFETCH_LOOKAHEAD / 1000));
+            int edge = visibleImages.length / 2;
+            for (int i = 1; i <= count; i++) {
+                int imageIndex = (centerImageIndex + navigationDirection
+                        * (edge + i)) % amountOfImages;
+                if (imageIndex < 0) {
+                    imageIndex += amountOfImages;
+                }
+                /* Load the rendition the image enters the view with */
+                String url = urlProvider.getImageUrl(imageIndex,
+                        urlProvider.selectTier(getSlotPixelWidth(0)));
+                if (url == null) {
+                    break;
+                }
+                urls.add(url);
+                ImagePreloader.load(url, edge + i, prefetchHandler);
+            }
+        }
+        cancelPrefetch(urls);
+    }
+
+    /**
+     * Cancels the prefetches that are not in the given list of URLs, and
+     * makes the list the current prefetches.
+     */
+    private void cancelPrefetch(List<String> keep) {
+        for (String url : prefetchedUrls) {
+            if (!keep.contains(url)) {
+                ImagePreloader.cancel(url, prefetchHandler);
+            }
+        }
+        prefetchedUrls = keep;
     }
 
     private void updateCenterImage() {
@@ -476,6 +1090,15 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
                                 * currentWidth));
                 centerImg.getElement().getStyle().clearZIndex();
             }
+            if (transformRendering) {
+                /* Let the browser run the fades as CSS transitions */
+                for (VImage img : visibleImages) {
+                    if (img != centerImg) {
+                        img.fadeTo(maximize ? 0 : 1, animationDuration);
+                    }
+                }
+            }
+            startFrameStatistics();
             Animation animation = new Animation() {
                 private boolean continueMaximize = true;
                 private boolean startMinimize = false;
@@ -485,7 +1108,9 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
                     if (animationRunning) {
                         for (VImage img : visibleImages) {
                             if (img != centerImg) {
-                                updateOpacity(img, progress, maximize);
+                                if (!transformRendering) {
+                                    updateOpacity(img, progress, maximize);
+                                }
                                 continue;
                             }
                             int newWidth = img.getStartWidth()
@@ -502,9 +1127,15 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
                                 updateAnimatedPositionAndWidth(img, progress);
                             }
                         }
+                        animationFrame();
                         if (progress >= 1) {
                             animationRunning = false;
+                            stopFrameStatistics();
                             renderImages();
+                            runPendingAnimations();
+                            if (!animationRunning && listener != null) {
+                                listener.animationFinished();
+                            }
                         }
                     }
                 }
@@ -526,11 +1157,8 @@ public class VImageViewer extends FocusPanel implements KeyDownHandler,
      *            true for fade-out, false for fade-in
      */
     private void updateOpacity(VImage img, double progress, boolean down) {
-        Style style = img.getElement().getStyle();
         double newOpac = down ? progress >= 1 ? 0 : 1 - progress
                 : progress >= 1 ? 1 : progress;
-        style.setOpacity(newOpac);
-        int newIntOpac = (int) (100 * newOpac);
-        style.setProperty("filter", "alpha(opacity = " + newIntOpac + ")");
+        img.setContainerOpacity(newOpac);
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package org.tepi.imageviewer.client.imagepreloader;
 
+import com.google.gwt.dom.client.ImageElement;
 import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.ui.Image;
 
@@ -21,6 +22,13 @@ public class FitImage extends Image {
 
 	private Dimensions dimensions;
 
+	private String loadingUrl;
+
+	/** Handler of the load in progress, or null if no load is in progress */
+	private ImageLoadHandler loadHandler;
+
+	private int loadPriority;
+
 	private void resize() {
 		if (fixedWidth != null) {
 			setWidth(fixedWidth);
@@ -75,6 +83,23 @@ public class FitImage extends Image {
 	public FitImage() {
 	}
 
+	/**
+	 * Creates a FitImage showing an image element that has already been
+	 * loaded, e.g. one taken from an {@link ImageLoadEvent}.
+	 * 
+	 * @param element
+	 *            - the loaded image element
+	 * @param dimensions
+	 *            - original dimensions of the image, or null if unknown
+	 */
+	public FitImage(ImageElement element, Dimensions dimensions) {
+		super(element);
+		if (dimensions != null) {
+			this.dimensions = dimensions;
+			aspectRatio = ((double) dimensions.getHeight()) / ((double) dimensions.getWidth());
+		}
+	}
+
 	public FitImage(String url) {
 		super();
 		setUrl(url);
@@ -108,11 +133,25 @@ public class FitImage extends Image {
 		resize();
 	}
 
+	/**
+	 * Loads the image through the {@link ImagePreloader} and shows it once it
+	 * has loaded. A load of a previous URL that has not completed yet is
+	 * cancelled.
+	 */
 	@Override
-	public void setUrl(String url) {
-		super.setUrl(url);
-		ImagePreloader.load(url, new ImageLoadHandler() {
+	public void setUrl(final String url) {
+		if (loadHandler != null) {
+			ImagePreloader.cancel(loadingUrl, loadHandler);
+		}
+		loadingUrl = url;
+		loadHandler = new ImageLoadHandler() {
 			public void imageLoaded(ImageLoadEvent event) {
+				/* Ignore loads of a previous URL */
+				if (!url.equals(loadingUrl)) {
+					return;
+				}
+				loadHandler = null;
+				FitImage.super.setUrl(url);
 				if (!event.isLoadFailed()) {
 					dimensions = event.getDimensions();
 					aspectRatio = ((double) dimensions.getHeight()) / ((double) dimensions.getWidth());
@@ -120,7 +159,46 @@ public class FitImage extends Image {
 				resize();
 				fireEvent(new FitImageLoadEvent(event.isLoadFailed()));
 			}
-		});
+		};
+		ImagePreloader.load(url, loadPriority, loadHandler);
+	}
+
+	/**
+	 * Cancels a load in progress when the image is detached. The load is
+	 * requested again if the image is attached back.
+	 */
+	@Override
+	protected void onUnload() {
+		super.onUnload();
+		if (loadHandler != null) {
+			ImagePreloader.cancel(loadingUrl, loadHandler);
+		}
+	}
+
+	@Override
+	protected void onLoad() {
+		super.onLoad();
+		if (loadHandler != null) {
+			ImagePreloader.load(loadingUrl, loadPriority, loadHandler);
+		}
+	}
+
+	public int getLoadPriority() {
+		return loadPriority;
+	}
+
+	/**
+	 * Priority of loading the image, lower values are loaded first. See
+	 * {@link ImagePreloader#load(String, int, ImageLoadHandler)}. Changing the
+	 * priority also affects a load that is already waiting.
+	 */
+	public void setLoadPriority(int loadPriority) {
+		if (this.loadPriority != loadPriority) {
+			this.loadPriority = loadPriority;
+			if (loadHandler != null) {
+				ImagePreloader.setPriority(loadingUrl, loadPriority);
+			}
+		}
 	}
 
 	public Integer getOriginalWidth() {
@@ -211,6 +289,10 @@ public class FitImage extends Image {
 	}
 
 	private void setHeight(Integer px) {
+		if (px != null && px > 0 && px == height) {
+			/* Unchanged, avoid the style write */
+			return;
+		}
 		if (px == null) {
 			setHeight("");
 			height = 0;
@@ -225,6 +307,10 @@ public class FitImage extends Image {
 	}
 
 	private void setWidth(Integer px) {
+		if (px != null && px > 0 && px == width) {
+			/* Unchanged, avoid the style write */
+			return;
+		}
 		if (px == null) {
 			setWidth("");
 			width = 0;
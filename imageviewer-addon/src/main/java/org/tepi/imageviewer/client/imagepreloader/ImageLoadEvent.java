@@ -21,17 +21,42 @@ public class ImageLoadEvent extends GwtEvent<ImageLoadHandler> {
 	protected String url;
 	protected Dimensions dimensions;
 	protected boolean imageTaken;
+	protected double loadLatency = -1;
+	protected double decodeTime = -1;
 
 	public Dimensions getDimensions() {
 		return dimensions;
 	}
 
+	/**
+	 * Takes the loaded image as a widget, see {@link #takeImageElement()}.
+	 * Returns null if the load failed or the image was already taken.
+	 */
 	public Image takeImage() {
-		imageTaken = true;
 		if (image == null) {
-			return new Image(url);
+			return null;
 		} else {
+			imageTaken = true;
 			Image ret = new ImageFromElement(image);
+			url = image.getSrc();
+			image = null;
+			return ret;
+		}
+	}
+
+	/**
+	 * Takes the loaded image element for showing it, so the image does not
+	 * need to be fetched and decoded again. Each handler of a successful load
+	 * is given a loaded and decoded element of its own; null is returned only
+	 * if the load failed or the element was already taken.
+	 */
+	public ImageElement takeImageElement() {
+		if (image == null) {
+			return null;
+		} else {
+			imageTaken = true;
+			ImageElement ret = image;
+			url = ret.getSrc();
 			image = null;
 			return ret;
 		}
@@ -51,6 +76,28 @@ public class ImageLoadEvent extends GwtEvent<ImageLoadHandler> {
 		return dimensions == null;
 	}
 
+	void setTimings(double loadLatency, double decodeTime) {
+		this.loadLatency = loadLatency;
+		this.decodeTime = decodeTime;
+	}
+
+	/**
+	 * Returns the time from starting the load to the image being fetched, or
+	 * -1 if the image was not fetched for this event, e.g. when it was served
+	 * from the cache of the preloader.
+	 */
+	public double getLoadLatency() {
+		return loadLatency;
+	}
+
+	/**
+	 * Returns the time from the image being fetched to it being decoded, or
+	 * -1 if the image was not decoded for this event.
+	 */
+	public double getDecodeTime() {
+		return decodeTime;
+	}
+
 	@Override
 	protected void dispatch(ImageLoadHandler handler) {
 		handler.imageLoaded(this);
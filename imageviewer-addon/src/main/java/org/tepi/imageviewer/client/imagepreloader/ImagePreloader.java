@@ -1,26 +1,199 @@
 package org.tepi.imageviewer.client.imagepreloader;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
-import com.google.gwt.dom.client.Document;
-import com.google.gwt.dom.client.Element;
+import com.google.gwt.core.client.Duration;
 import com.google.gwt.dom.client.ImageElement;
+import com.google.gwt.user.client.Command;
 import com.google.gwt.user.client.DOM;
 import com.google.gwt.user.client.Event;
 import com.google.gwt.user.client.EventListener;
 
 public class ImagePreloader {
-	private static Map<String, Dimensions> dimensionCache = new HashMap<String, Dimensions>();
+	/** Maximum amount of URLs in the dimension cache */
+	private static int dimensionCacheCapacity = 1000;
 
-	private static List<ImageLoader> activeLoaders = new ArrayList<ImageLoader>();
+	/**
+	 * Dimensions of loaded images, in least recently used order. Failed loads
+	 * are stored as Dimensions(-1, -1) until their retry time.
+	 */
+	@SuppressWarnings("serial")
+	private static Map<String, Dimensions> dimensionCache = new LinkedHashMap<String, Dimensions>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Dimensions> eldest) {
+			return size() > dimensionCacheCapacity;
+		}
+	};
+
+	/** Failure counts and retry times of failed loads, least recently used first */
+	@SuppressWarnings("serial")
+	private static Map<String, FailedLoad> failedLoads = new LinkedHashMap<String, FailedLoad>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, FailedLoad> eldest) {
+			return size() > dimensionCacheCapacity;
+		}
+	};
+
+	/** Maximum amount of loaded image elements kept for reuse */
+	private static int imageElementCacheCapacity = 30;
+
+	/**
+	 * Loaded and decoded image elements not currently shown, in least recently
+	 * used order. Handed to the next load of the same URL.
+	 */
+	@SuppressWarnings("serial")
+	private static Map<String, ImageElement> imageElementCache = new LinkedHashMap<String, ImageElement>(16, 0.75f,
+			true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ImageElement> eldest) {
+			return size() > imageElementCacheCapacity;
+		}
+	};
 
-	private static Element loadingArea;
+	/** Time (ms) after which the first failed load of a URL is retried */
+	private static int failedLoadRetryDelay = 2000;
+
+	/** Maximum time (ms) between retries of a repeatedly failing URL */
+	private static int maxFailedLoadRetryDelay = 120000;
+
+	/** Loads in progress or waiting to start, by URL */
+	private static Map<String, ImageLoader> activeLoaders = new HashMap<String, ImageLoader>();
+
+	/** Loads waiting for a free slot, the most urgent one first */
+	private static PriorityQueue<ImageLoader> pendingLoaders = new PriorityQueue<ImageLoader>(11,
+			new Comparator<ImageLoader>() {
+				public int compare(ImageLoader o1, ImageLoader o2) {
+					if (o1.priority != o2.priority) {
+						return o1.priority < o2.priority ? -1 : 1;
+					}
+					return o1.sequence < o2.sequence ? -1 : o1.sequence == o2.sequence ? 0 : 1;
+				}
+			});
+
+	/** Maximum amount of loads running at the same time */
+	private static int maxConcurrentLoads = 4;
+
+	/** Amount of loads currently running */
+	private static int loadsInFlight;
+
+	/** Order in which the loads were requested, used for equal priorities */
+	private static int loadSequence;
+
+	/**
+	 * Sets the maximum amount of images loaded at the same time. Loads with
+	 * priority 0 are always started immediately and are not limited by this.
+	 * 
+	 * @param maxConcurrentLoads
+	 *            - maximum amount of concurrent loads, at least 1
+	 */
+	public static void setMaxConcurrentLoads(int maxConcurrentLoads) {
+		ImagePreloader.maxConcurrentLoads = Math.max(1, maxConcurrentLoads);
+		startPendingLoads();
+	}
+
+	public static int getMaxConcurrentLoads() {
+		return maxConcurrentLoads;
+	}
+
+	/**
+	 * Sets the maximum amount of image dimensions kept in the cache. When the
+	 * cache is full, the least recently used entry is evicted.
+	 * 
+	 * @param capacity
+	 *            - maximum amount of cached URLs, at least 1
+	 */
+	public static void setDimensionCacheCapacity(int capacity) {
+		dimensionCacheCapacity = Math.max(1, capacity);
+		trim(dimensionCache, dimensionCacheCapacity);
+		trim(failedLoads, dimensionCacheCapacity);
+	}
+
+	public static int getDimensionCacheCapacity() {
+		return dimensionCacheCapacity;
+	}
+
+	/**
+	 * Sets the retry delays of failed loads. A failed URL is reported as
+	 * failed without loading until the delay has passed; after that the next
+	 * load of the URL is attempted again. The delay doubles with each
+	 * consecutive failure of the same URL, up to the given maximum.
+	 * 
+	 * @param retryDelay
+	 *            - delay (ms) after the first failure
+	 * @param maxRetryDelay
+	 *            - maximum delay (ms)
+	 */
+	public static void setFailedLoadRetryDelay(int retryDelay, int maxRetryDelay) {
+		failedLoadRetryDelay = Math.max(0, retryDelay);
+		maxFailedLoadRetryDelay = Math.max(failedLoadRetryDelay, maxRetryDelay);
+	}
+
+	/**
+	 * Sets the maximum amount of loaded image elements kept for reuse. Each
+	 * kept element holds the decoded image, so showing the image again does
+	 * not need another fetch or decode.
+	 * 
+	 * @param capacity
+	 *            - maximum amount of kept elements, 0 to disable
+	 */
+	public static void setImageElementCacheCapacity(int capacity) {
+		imageElementCacheCapacity = Math.max(0, capacity);
+		trim(imageElementCache, imageElementCacheCapacity);
+	}
+
+	public static int getImageElementCacheCapacity() {
+		return imageElementCacheCapacity;
+	}
+
+	/**
+	 * Returns a loaded image element that is no longer shown, so that it can be
+	 * handed to the next load of the same URL through
+	 * {@link ImageLoadEvent#takeImageElement()}.
+	 * 
+	 * @param url
+	 *            - the URL the element was loaded from
+	 * @param image
+	 *            - the detached image element
+	 */
+	public static void releaseImageElement(String url, ImageElement image) {
+		if (url != null && image != null && imageElementCacheCapacity > 0) {
+			imageElementCache.put(url, image);
+		}
+	}
+
+	private static void trim(Map<String, ?> cache, int capacity) {
+		Iterator<String> eldest = cache.keySet().iterator();
+		while (cache.size() > capacity) {
+			eldest.next();
+			eldest.remove();
+		}
+	}
 
 	public static Dimensions getCachedDimensions(String url) {
-		return dimensionCache.get(url);
+		return lookup(url);
+	}
+
+	/**
+	 * Returns the cached dimensions of the URL, or null if the URL is not
+	 * cached or it failed to load and its retry time has passed.
+	 */
+	private static Dimensions lookup(String url) {
+		Dimensions dimensions = dimensionCache.get(url);
+		if (dimensions != null && dimensions.getWidth() == -1) {
+			FailedLoad failure = failedLoads.get(url);
+			if (failure == null || Duration.currentTimeMillis() >= failure.retryAt) {
+				dimensionCache.remove(url);
+				return null;
+			}
+		}
+		return dimensions;
 	}
 
 	/**
@@ -34,114 +207,208 @@ public class ImagePreloader {
 	 *            able to get the original dimensions of the loaded image.
 	 */
 	public static void load(String url, ImageLoadHandler loadHandler) {
+		load(url, 0, loadHandler);
+	}
+
+	/**
+	 * Call this method to preload an image with the given priority. Loads are
+	 * started in priority order, lowest value first, while the amount of
+	 * running loads is below the maximum set with
+	 * {@link #setMaxConcurrentLoads(int)}. Priority 0 loads are started
+	 * immediately.
+	 * 
+	 * @param url
+	 *            - the image to pre-load
+	 * @param priority
+	 *            - priority of the load, e.g. the distance of the image from
+	 *            the center of the view
+	 * @param loadHandler
+	 *            - (optional) specify an ImageLoadHandler to be fired when the
+	 *            image is fully loaded.
+	 */
+	public static void load(String url, int priority, ImageLoadHandler loadHandler) {
 		if (url == null) {
 			if (loadHandler != null)
 				loadHandler.imageLoaded(new ImageLoadEvent(url, null));
 			return;
 		}
 
-		if (dimensionCache.containsKey(url)) {
+		Dimensions cachedDimensions = lookup(url);
+		if (cachedDimensions != null && cachedDimensions.getWidth() == -1) {
+			// image load failed
+			if (loadHandler != null)
+				loadHandler.imageLoaded(new ImageLoadEvent(url, null));
+			// FireLaterTimer.fireLater(loadHandler, new ImageLoadEvent(url,
+			// null));
+			return;
+		}
+		ImageElement image = cachedDimensions != null ? imageElementCache.get(url) : null;
+		if (image != null) {
+			// image load succeeded; hand over the kept element
 			if (loadHandler != null) {
-				Dimensions cachedDimensions = dimensionCache.get(url);
-				if (cachedDimensions.getWidth() == -1)
-					// image load failed
-					loadHandler.imageLoaded(new ImageLoadEvent(url, null));
-				// FireLaterTimer.fireLater(loadHandler, new ImageLoadEvent(url,
-				// null));
-				else
-					// image load succeeded
-					loadHandler.imageLoaded(new ImageLoadEvent(url, cachedDimensions));
-				// FireLaterTimer.fireLater(loadHandler, new ImageLoadEvent(url,
-				// cachedDimensions));
+				ImageLoadEvent event = new ImageLoadEvent(image, cachedDimensions);
+				loadHandler.imageLoaded(event);
+				if (event.isImageTaken()) {
+					imageElementCache.remove(url);
+				}
 			}
 			return;
-		} else {
-			int index = findUrlInPool(url);
-			if (index != -1) {
-				activeLoaders.get(index).addHander(loadHandler);
-				return;
+		}
+		/*
+		 * An image loaded earlier without a kept element is loaded again, so
+		 * that the handler gets an element that has been fetched and decoded
+		 */
+		ImageLoader active = activeLoaders.get(url);
+		if (active != null) {
+			active.addHander(loadHandler);
+			if (priority < active.priority) {
+				setPriority(url, priority);
 			}
+			return;
 		}
 
-		init();
-
-		ImageLoader loader = new ImageLoader();
-		activeLoaders.add(loader);
+		ImageLoader loader = new ImageLoader(url, priority);
+		activeLoaders.put(url, loader);
 		loader.addHander(loadHandler);
-		loader.start(url);
-	}
-
-	private static void init() {
-		if (loadingArea == null) {
-			loadingArea = DOM.createDiv();
-			loadingArea.getStyle().setProperty("visibility", "hidden");
-			loadingArea.getStyle().setProperty("position", "absolute");
-			loadingArea.getStyle().setProperty("width", "1px");
-			loadingArea.getStyle().setProperty("height", "1px");
-			loadingArea.getStyle().setProperty("overflow", "hidden");
-			Document.get().getBody().appendChild(loadingArea);
-			Event.setEventListener(loadingArea, new EventListener() {
-				public void onBrowserEvent(Event event) {
-					boolean success;
-					if (Event.ONLOAD == event.getTypeInt()) {
-						success = true;
-					} else if (Event.ONERROR == event.getTypeInt()) {
-						success = false;
-					} else {
-						return;
-					}
-
-					if (!ImageElement.is(event.getCurrentEventTarget()))
-						return;
-
-					ImageElement image = ImageElement.as(Element.as(event.getCurrentEventTarget()));
-					int index = findImageInPool(image);
-					ImageLoader loader = activeLoaders.get(index);
-
-					Dimensions dim = null;
-					if (success) {
-						dim = new Dimensions(image.getWidth(), image.getHeight());
-						dimensionCache.put(loader.url, dim);
-					} else {
-						dimensionCache.put(loader.url, new Dimensions(-1, -1));
-					}
+		pendingLoaders.add(loader);
+		startPendingLoads();
+	}
 
-					loadingArea.removeChild(image);
-					activeLoaders.remove(index);
+	/**
+	 * Changes the priority of a load that has not completed yet. Loads that
+	 * already started keep running.
+	 * 
+	 * @param url
+	 *            - the image being loaded
+	 * @param priority
+	 *            - new priority of the load
+	 */
+	public static void setPriority(String url, int priority) {
+		ImageLoader loader = activeLoaders.get(url);
+		if (loader == null) {
+			return;
+		}
+		if (loader.priority == priority) {
+			return;
+		}
+		if (!loader.started && pendingLoaders.remove(loader)) {
+			loader.priority = priority;
+			pendingLoaders.add(loader);
+			startPendingLoads();
+		} else {
+			loader.priority = priority;
+		}
+	}
 
-					ImageLoadEvent evt = new ImageLoadEvent(image, dim);
-					loader.fireHandlers(evt);
-				}
-			});
+	/**
+	 * Removes a handler registered with {@link #load(String, ImageLoadHandler)}.
+	 * If the load has no other handlers and has not been started yet, it is
+	 * cancelled. Loads that already started are completed, so that the result
+	 * is cached for later use.
+	 * 
+	 * @param url
+	 *            - the image being loaded
+	 * @param loadHandler
+	 *            - the handler to remove
+	 */
+	public static void cancel(String url, ImageLoadHandler loadHandler) {
+		ImageLoader loader = activeLoaders.get(url);
+		if (loader == null) {
+			return;
+		}
+		loader.removeHandler(loadHandler);
+		if (!loader.started && !loader.hasHandlers()) {
+			pendingLoaders.remove(loader);
+			activeLoaders.remove(url);
 		}
 	}
 
-	private static int findImageInPool(ImageElement image) {
-		for (int index = 0; index < activeLoaders.size(); index++) {
-			if (activeLoaders.get(index).imageEquals(image)) {
-				return index;
-			}
+	/**
+	 * Starts pending loads in priority order while there are free load slots.
+	 */
+	private static void startPendingLoads() {
+		while (!pendingLoaders.isEmpty()
+				&& (loadsInFlight < maxConcurrentLoads || pendingLoaders.peek().priority <= 0)) {
+			ImageLoader loader = pendingLoaders.poll();
+			loadsInFlight++;
+			loader.start();
 		}
-		return -1;
 	}
 
-	private static int findUrlInPool(String url) {
-		for (int index = 0; index < activeLoaders.size(); index++) {
-			if (activeLoaders.get(index).urlEquals(url)) {
-				return index;
-			}
+	/**
+	 * Schedules the retry of a failed URL, backing off exponentially on
+	 * consecutive failures.
+	 */
+	private static void recordFailure(String url) {
+		FailedLoad previous = failedLoads.get(url);
+		int failures = previous == null ? 1 : previous.failures + 1;
+		double delay = Math.min(maxFailedLoadRetryDelay, failedLoadRetryDelay * Math.pow(2, failures - 1));
+		failedLoads.put(url, new FailedLoad(failures, Duration.currentTimeMillis() + delay));
+	}
+
+	/**
+	 * Runs the command once the image element has been decoded, using
+	 * HTMLImageElement.decode() where supported. In browsers without decode()
+	 * the command is run immediately. A failed decode also runs the command,
+	 * since the loaded image can still be shown.
+	 * 
+	 * @param image
+	 *            - the loaded image element
+	 * @param command
+	 *            - the command to run
+	 */
+	public static native void whenDecoded(ImageElement image, Command command)
+	/*-{
+		var done = $entry(function() {
+			command.@com.google.gwt.user.client.Command::execute()();
+		});
+		if (typeof image.decode === 'function') {
+			image.decode().then(done, done);
+		} else {
+			done();
+		}
+	}-*/;
+
+	private static native int getNaturalWidth(ImageElement image)
+	/*-{
+		return image.naturalWidth || image.width;
+	}-*/;
+
+	private static native int getNaturalHeight(ImageElement image)
+	/*-{
+		return image.naturalHeight || image.height;
+	}-*/;
+
+	private static class FailedLoad {
+		final int failures;
+		final double retryAt;
+
+		FailedLoad(int failures, double retryAt) {
+			this.failures = failures;
+			this.retryAt = retryAt;
 		}
-		return -1;
 	}
 
-	private static class ImageLoader {
-		ImageElement image = DOM.createImg().cast();
+	/**
+	 * Loads one URL through a detached image element. The loader itself
+	 * listens to the events of its element, so no lookup is needed when the
+	 * load completes.
+	 */
+	private static class ImageLoader implements EventListener {
+		ImageElement image;
 		List<ImageLoadHandler> handlers;
 		String url;
+		int priority;
+		int sequence;
+		boolean started;
+		/* Times the load was started and the image was fetched */
+		double startTime;
+		double fetchTime;
 
-		public ImageLoader() {
-			Event.sinkEvents(image, Event.ONLOAD | Event.ONERROR);
-			loadingArea.appendChild(image);
+		public ImageLoader(String url, int priority) {
+			this.url = url;
+			this.priority = priority;
+			sequence = loadSequence++;
 		}
 
 		public void clearHandlers() {
@@ -150,7 +417,7 @@ public class ImagePreloader {
 		}
 
 		public void addHander(ImageLoadHandler handler) {
-			if (handler != null) {
+			if (handler != null && (handlers == null || !handlers.contains(handler))) {
 				if (handlers == null) {
 					handlers = new ArrayList<ImageLoadHandler>(1);
 				}
@@ -158,25 +425,111 @@ public class ImagePreloader {
 			}
 		}
 
-		public void fireHandlers(ImageLoadEvent event) {
+		public void removeHandler(ImageLoadHandler handler) {
+			if (handlers != null) {
+				handlers.remove(handler);
+			}
+		}
+
+		public boolean hasHandlers() {
+			return handlers != null && !handlers.isEmpty();
+		}
+
+		/**
+		 * Fires the event to the handlers until one of them takes the loaded
+		 * element. An element can only be shown in one place, so the handlers
+		 * after that are returned for loading an element of their own.
+		 */
+		public List<ImageLoadHandler> fireHandlers(ImageLoadEvent event) {
+			List<ImageLoadHandler> waiting = null;
 			if (handlers != null) {
-				for (ImageLoadHandler handler : handlers) {
-					handler.imageLoaded(event);
+				for (ImageLoadHandler handler : new ArrayList<ImageLoadHandler>(handlers)) {
+					if (event.isImageTaken()) {
+						if (waiting == null) {
+							waiting = new ArrayList<ImageLoadHandler>(1);
+						}
+						waiting.add(handler);
+					} else {
+						handler.imageLoaded(event);
+					}
 				}
 			}
+			return waiting;
 		}
 
-		public void start(String url) {
-			this.url = url;
+		public void start() {
+			started = true;
+			startTime = Duration.currentTimeMillis();
+			image = DOM.createImg().cast();
+			Event.sinkEvents(image, Event.ONLOAD | Event.ONERROR);
+			Event.setEventListener(image, this);
 			image.setSrc(url);
 		}
 
-		public boolean imageEquals(ImageElement image) {
-			return this.image == image;
+		public void onBrowserEvent(Event event) {
+			boolean success;
+			if (Event.ONLOAD == event.getTypeInt()) {
+				success = true;
+			} else if (Event.ONERROR == event.getTypeInt()) {
+				success = false;
+			} else {
+				return;
+			}
+			Event.sinkEvents(image, 0);
+			Event.setEventListener(image, null);
+			fetchTime = Duration.currentTimeMillis();
+
+			if (success) {
+				/* Report the load only once the image is ready to be painted */
+				decode(image);
+			} else {
+				loadCompleted(false);
+			}
 		}
 
-		public boolean urlEquals(String url) {
-			return this.url.equals(url);
+		/**
+		 * Decodes the loaded image off the main thread with
+		 * HTMLImageElement.decode() where supported, so that showing the image
+		 * does not stall a frame with a synchronous decode. Browsers without
+		 * decode() complete the load immediately.
+		 */
+		private void decode(ImageElement image) {
+			whenDecoded(image, new Command() {
+				public void execute() {
+					loadCompleted(true);
+				}
+			});
+		}
+
+		private void loadCompleted(boolean success) {
+			Dimensions dim = null;
+			if (success) {
+				dim = new Dimensions(getNaturalWidth(image), getNaturalHeight(image));
+				dimensionCache.put(url, dim);
+				failedLoads.remove(url);
+			} else {
+				dimensionCache.put(url, new Dimensions(-1, -1));
+				recordFailure(url);
+			}
+
+			activeLoaders.remove(url);
+			loadsInFlight--;
+
+			ImageLoadEvent evt = new ImageLoadEvent(image, dim);
+			if (success) {
+				evt.setTimings(fetchTime - startTime, Duration.currentTimeMillis() - fetchTime);
+			}
+			List<ImageLoadHandler> waiting = fireHandlers(evt);
+			if (success && !evt.isImageTaken()) {
+				releaseImageElement(url, image);
+			}
+			/* Handlers left without an element load one of their own */
+			if (waiting != null) {
+				for (ImageLoadHandler handler : waiting) {
+					load(url, priority, handler);
+				}
+			}
+			startPendingLoads();
 		}
 	}
 
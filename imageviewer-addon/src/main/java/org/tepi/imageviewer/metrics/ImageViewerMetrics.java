@@ -0,0 +1,100 @@
+package org.tepi.imageviewer.metrics;
+
+import java.io.Serializable;
+
+import org.tepi.imageviewer.ImageViewer;
+
+/**
+ * Hook for recording what ImageViewers cost on the server. An implementation
+ * is set to each ImageViewer with
+ * {@link ImageViewer#setMetrics(ImageViewerMetrics)} and to caches such as
+ * {@link org.tepi.imageviewer.rendition.DiskRenditionCache}; typically one
+ * instance is shared by the whole application. All methods do nothing by
+ * default, so implementations only override what they record. The methods
+ * are called from request threads, often without the session lock, and
+ * must be thread safe and fast.
+ *
+ * @see InMemoryImageViewerMetrics
+ * @author Teppo Kurki
+ */
+public interface ImageViewerMetrics extends Serializable {
+
+	/** Metrics recording nothing; the default of ImageViewer */
+	public static final ImageViewerMetrics NONE = new ImageViewerMetrics() {
+	};
+
+	/**
+	 * Called when a list of images is set to an ImageViewer.
+	 *
+	 * @param viewer
+	 *            The ImageViewer
+	 * @param count
+	 *            Amount of images set
+	 * @param nanos
+	 *            Time spent in setImages in nanoseconds
+	 */
+	public default void imagesSet(ImageViewer viewer, int count, long nanos) {
+	}
+
+	/**
+	 * Called when an ImageViewer receives a move from the client.
+	 *
+	 * @param viewer
+	 *            The ImageViewer
+	 */
+	public default void rpcReceived(ImageViewer viewer) {
+	}
+
+	/**
+	 * Called when the image selection listeners of an ImageViewer have been
+	 * notified of an event.
+	 *
+	 * @param viewer
+	 *            The ImageViewer
+	 * @param listeners
+	 *            Amount of listeners notified
+	 * @param nanos
+	 *            Time spent notifying the listeners in nanoseconds
+	 */
+	public default void listenersNotified(ImageViewer viewer, int listeners, long nanos) {
+	}
+
+	/**
+	 * Called when an image of an ImageViewer has been served.
+	 *
+	 * @param viewer
+	 *            The ImageViewer
+	 * @param image
+	 *            Name of the image: its version, see
+	 *            ImageViewer#getImageVersion, or the key it is registered
+	 *            with, e.g. "image-12", if it has no version
+	 * @param width
+	 *            Width tier served, or 0 for the original image
+	 * @param bytes
+	 *            Amount of bytes written
+	 * @param nanos
+	 *            Time spent serving the image in nanoseconds
+	 */
+	public default void imageServed(ImageViewer viewer, String image, int width, long bytes, long nanos) {
+	}
+
+	/**
+	 * Called when a lookup from a cache of images is answered from the
+	 * cache.
+	 *
+	 * @param cache
+	 *            Name of the cache, e.g. "rendition" or "http"
+	 */
+	public default void cacheHit(String cache) {
+	}
+
+	/**
+	 * Called when a lookup from a cache of images is not answered from the
+	 * cache.
+	 *
+	 * @param cache
+	 *            Name of the cache, e.g. "rendition" or "http"
+	 */
+	public default void cacheMiss(String cache) {
+	}
+}
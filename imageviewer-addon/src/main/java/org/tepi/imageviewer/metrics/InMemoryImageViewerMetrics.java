@@ -0,0 +1,499 @@
+package org.tepi.imageviewer.metrics;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.tepi.imageviewer.ImageViewer;
+
+/**
+ * ImageViewerMetrics keeping counters and timers in memory. The counters are
+ * updated with {@link LongAdder}s, so recording does not contend between
+ * threads. The moves received are counted per ImageViewer instance, held
+ * weakly so that discarded components are released. The images served are
+ * counted per image for up to {@link #MAX_TRACKED_RESOURCES} images, and per
+ * width tier over all images.
+ * Call {@link #reset()} to start a new measurement period.
+ *
+ * @author Teppo Kurki
+ */
+@SuppressWarnings("serial")
+public class InMemoryImageViewerMetrics implements ImageViewerMetrics {
+
+	/** Maximum amount of images the requests served are counted for */
+	public static final int MAX_TRACKED_RESOURCES = 1000;
+
+	private final LongAdder imagesSetCount = new LongAdder();
+	private final LongAdder imagesSetImages = new LongAdder();
+	private final LongAdder imagesSetNanos = new LongAdder();
+	private final AtomicLong imagesSetMaxImages = new AtomicLong();
+
+	/* Moves by component; not serialized, since the keys are held weakly */
+	private transient Map<ImageViewer, LongAdder> rpcCounts;
+
+	private final LongAdder listenerDispatches = new LongAdder();
+	private final LongAdder listenerNanos = new LongAdder();
+	private final AtomicLong listenerMaxNanos = new AtomicLong();
+
+	private final LongAdder imageRequests = new LongAdder();
+	private final LongAdder imageBytes = new LongAdder();
+	private final LongAdder imageNanos = new LongAdder();
+	private final ConcurrentMap<String, ResourceCounters> resources = new ConcurrentHashMap<String, ResourceCounters>();
+	private final ConcurrentMap<Integer, ResourceCounters> tiers = new ConcurrentHashMap<Integer, ResourceCounters>();
+
+	private final ConcurrentMap<String, LongAdder> cacheHits = new ConcurrentHashMap<String, LongAdder>();
+	private final ConcurrentMap<String, LongAdder> cacheMisses = new ConcurrentHashMap<String, LongAdder>();
+
+	private volatile long startTime = System.currentTimeMillis();
+
+	@Override
+	public void imagesSet(ImageViewer viewer, int count, long nanos) {
+		imagesSetCount.increment();
+		imagesSetImages.add(count);
+		imagesSetNanos.add(nanos);
+		max(imagesSetMaxImages, count);
+	}
+
+	@Override
+	public void rpcReceived(ImageViewer viewer) {
+		Map<ImageViewer, LongAdder> counts = rpcCounts();
+		LongAdder counter;
+		synchronized (counts) {
+			counter = counts.get(viewer);
+			if (counter == null) {
+				counter = new LongAdder();
+				counts.put(viewer, counter);
+			}
+		}
+		counter.increment();
+	}
+
+	private synchronized Map<ImageViewer, LongAdder> rpcCounts() {
+		if (rpcCounts == null) {
+			rpcCounts = Collections.synchronizedMap(new WeakHashMap<ImageViewer, LongAdder>());
+		}
+		return rpcCounts;
+	}
+
+	@Override
+	public void listenersNotified(ImageViewer viewer, int listeners, long nanos) {
+		listenerDispatches.increment();
+		listenerNanos.add(nanos);
+		max(listenerMaxNanos, nanos);
+	}
+
+	@Override
+	public void imageServed(ImageViewer viewer, String image, int width, long bytes, long nanos) {
+		imageRequests.increment();
+		imageBytes.add(bytes);
+		imageNanos.add(nanos);
+		if (image != null) {
+			ResourceCounters counters = resources.get(image);
+			if (counters == null && resources.size() < MAX_TRACKED_RESOURCES) {
+				counters = counters(resources, image);
+			}
+			if (counters != null) {
+				counters.add(bytes, nanos);
+			}
+		}
+		counters(tiers, width).add(bytes, nanos);
+	}
+
+	private static <K> ResourceCounters counters(ConcurrentMap<K, ResourceCounters> counters, K key) {
+		ResourceCounters counter = counters.get(key);
+		if (counter == null) {
+			ResourceCounters added = new ResourceCounters();
+			counter = counters.putIfAbsent(key, added);
+			if (counter == null) {
+				counter = added;
+			}
+		}
+		return counter;
+	}
+
+	@Override
+	public void cacheHit(String cache) {
+		counter(cacheHits, cache).increment();
+	}
+
+	@Override
+	public void cacheMiss(String cache) {
+		counter(cacheMisses, cache).increment();
+	}
+
+	private static void max(AtomicLong max, long value) {
+		long current;
+		while ((current = max.get()) < value && !max.compareAndSet(current, value)) {
+		}
+	}
+
+	private static LongAdder counter(ConcurrentMap<String, LongAdder> counters, String key) {
+		LongAdder counter = counters.get(key);
+		if (counter == null) {
+			LongAdder added = new LongAdder();
+			counter = counters.putIfAbsent(key, added);
+			if (counter == null) {
+				counter = added;
+			}
+		}
+		return counter;
+	}
+
+	private static long count(Map<String, LongAdder> counters, String key) {
+		LongAdder counter = counters.get(key);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * Clears all counters and starts a new measurement period.
+	 */
+	public void reset() {
+		imagesSetCount.reset();
+		imagesSetImages.reset();
+		imagesSetNanos.reset();
+		imagesSetMaxImages.set(0);
+		rpcCounts().clear();
+		listenerDispatches.reset();
+		listenerNanos.reset();
+		listenerMaxNanos.set(0);
+		imageRequests.reset();
+		imageBytes.reset();
+		imageNanos.reset();
+		resources.clear();
+		tiers.clear();
+		cacheHits.clear();
+		cacheMisses.clear();
+		startTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Returns the time the current measurement period started.
+	 *
+	 * @return Start time in milliseconds since the epoch
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the amount of calls to setImages.
+	 *
+	 * @return Amount of calls
+	 */
+	public long getImagesSetCount() {
+		return imagesSetCount.sum();
+	}
+
+	/**
+	 * Returns the total amount of images set with setImages.
+	 *
+	 * @return Amount of images
+	 */
+	public long getImagesSetTotalImages() {
+		return imagesSetImages.sum();
+	}
+
+	/**
+	 * Returns the largest amount of images set in one call to setImages.
+	 *
+	 * @return Amount of images
+	 */
+	public long getImagesSetMaxImages() {
+		return imagesSetMaxImages.get();
+	}
+
+	/**
+	 * Returns the total time spent in setImages.
+	 *
+	 * @return Time in milliseconds
+	 */
+	public double getImagesSetTime() {
+		return imagesSetNanos.sum() / 1e6;
+	}
+
+	/**
+	 * Returns the amount of moves received from the client by each component
+	 * that is still in use.
+	 *
+	 * @return Amounts by component
+	 */
+	public Map<ImageViewer, Long> getRpcCounts() {
+		Map<ImageViewer, LongAdder> counts = rpcCounts();
+		Map<ImageViewer, Long> snapshot = new HashMap<ImageViewer, Long>();
+		synchronized (counts) {
+			for (Map.Entry<ImageViewer, LongAdder> entry : counts.entrySet()) {
+				snapshot.put(entry.getKey(), entry.getValue().sum());
+			}
+		}
+		return Collections.unmodifiableMap(snapshot);
+	}
+
+	/**
+	 * Returns the amount of moves received from the client by a component.
+	 *
+	 * @param viewer
+	 *            The component
+	 * @return Amount of moves
+	 */
+	public long getRpcCount(ImageViewer viewer) {
+		Map<ImageViewer, LongAdder> counts = rpcCounts();
+		LongAdder counter;
+		synchronized (counts) {
+			counter = counts.get(viewer);
+		}
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * Returns the rate of moves received from the client by a component
+	 * during the current measurement period.
+	 *
+	 * @param viewer
+	 *            The component
+	 * @return Moves per second
+	 */
+	public double getRpcRate(ImageViewer viewer) {
+		long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+		return getRpcCount(viewer) * 1000.0 / elapsed;
+	}
+
+	/**
+	 * Returns the amount of events the image selection listeners have been
+	 * notified of.
+	 *
+	 * @return Amount of events
+	 */
+	public long getListenerDispatchCount() {
+		return listenerDispatches.sum();
+	}
+
+	/**
+	 * Returns the average time spent notifying the listeners of an event.
+	 *
+	 * @return Time in milliseconds
+	 */
+	public double getListenerDispatchAverageTime() {
+		long count = listenerDispatches.sum();
+		return count == 0 ? 0 : listenerNanos.sum() / 1e6 / count;
+	}
+
+	/**
+	 * Returns the longest time spent notifying the listeners of an event.
+	 *
+	 * @return Time in milliseconds
+	 */
+	public double getListenerDispatchMaxTime() {
+		return listenerMaxNanos.get() / 1e6;
+	}
+
+	/**
+	 * Returns the amount of image requests served with the image.
+	 *
+	 * @return Amount of requests
+	 */
+	public long getImageRequestCount() {
+		return imageRequests.sum();
+	}
+
+	/**
+	 * Returns the amount of image bytes served.
+	 *
+	 * @return Amount of bytes
+	 */
+	public long getImageBytes() {
+		return imageBytes.sum();
+	}
+
+	/**
+	 * Returns the average time spent serving an image.
+	 *
+	 * @return Time in milliseconds
+	 */
+	public double getImageAverageTime() {
+		long count = imageRequests.sum();
+		return count == 0 ? 0 : imageNanos.sum() / 1e6 / count;
+	}
+
+	/**
+	 * Returns the amount of requests served of each image in all width
+	 * tiers, with the bytes and time spent serving them. The images are named
+	 * by their version, or by their resource key if they have no version.
+	 *
+	 * @return Statistics by image, sorted by name
+	 */
+	public Map<String, ResourceStats> getResourceStats() {
+		return stats(resources);
+	}
+
+	/**
+	 * Returns the amount of requests served of each width tier over all
+	 * images, with the bytes and time spent serving them.
+	 *
+	 * @return Statistics by width, 0 for the original images, sorted by width
+	 */
+	public Map<Integer, ResourceStats> getTierStats() {
+		return stats(tiers);
+	}
+
+	private static <K> Map<K, ResourceStats> stats(Map<K, ResourceCounters> counters) {
+		Map<K, ResourceStats> stats = new TreeMap<K, ResourceStats>();
+		for (Map.Entry<K, ResourceCounters> entry : counters.entrySet()) {
+			ResourceCounters counter = entry.getValue();
+			stats.put(entry.getKey(), new ResourceStats(counter.requests.sum(), counter.bytes.sum(),
+					counter.nanos.sum(), counter.maxNanos.get()));
+		}
+		return Collections.unmodifiableMap(stats);
+	}
+
+	/**
+	 * Returns the amount of lookups answered from a cache.
+	 *
+	 * @param cache
+	 *            Name of the cache
+	 * @return Amount of hits
+	 */
+	public long getCacheHits(String cache) {
+		return count(cacheHits, cache);
+	}
+
+	/**
+	 * Returns the amount of lookups a cache could not answer.
+	 *
+	 * @param cache
+	 *            Name of the cache
+	 * @return Amount of misses
+	 */
+	public long getCacheMisses(String cache) {
+		return count(cacheMisses, cache);
+	}
+
+	/**
+	 * Returns the share of the lookups from a cache answered from the cache.
+	 *
+	 * @param cache
+	 *            Name of the cache
+	 * @return Hit ratio from 0 to 1, or 0 if there have been no lookups
+	 */
+	public double getCacheHitRatio(String cache) {
+		long hits = count(cacheHits, cache);
+		long lookups = hits + count(cacheMisses, cache);
+		return lookups == 0 ? 0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ImageViewer metrics since ").append(new Date(startTime));
+		sb.append("\n  setImages: ").append(getImagesSetCount()).append(" calls, ").append(getImagesSetTotalImages())
+				.append(" images, max ").append(getImagesSetMaxImages()).append(", ").append(getImagesSetTime())
+				.append(" ms");
+		sb.append("\n  RPCs:");
+		for (Map.Entry<ImageViewer, Long> entry : getRpcCounts().entrySet()) {
+			ImageViewer viewer = entry.getKey();
+			sb.append(' ').append(viewer.getId() != null ? viewer.getId()
+					: "ImageViewer@" + Integer.toHexString(System.identityHashCode(viewer)));
+			sb.append('=').append(entry.getValue());
+		}
+		sb.append("\n  listeners: ").append(getListenerDispatchCount()).append(" events, avg ")
+				.append(getListenerDispatchAverageTime()).append(" ms, max ").append(getListenerDispatchMaxTime())
+				.append(" ms");
+		sb.append("\n  images: ").append(getImageRequestCount()).append(" requests, ").append(getImageBytes())
+				.append(" bytes, avg ").append(getImageAverageTime()).append(" ms");
+		for (Map.Entry<Integer, ResourceStats> entry : getTierStats().entrySet()) {
+			sb.append("\n    ").append(entry.getKey() == 0 ? "original" : "width " + entry.getKey()).append(": ")
+					.append(entry.getValue());
+		}
+		for (Map.Entry<String, ResourceStats> entry : getResourceStats().entrySet()) {
+			sb.append("\n    ").append(entry.getKey()).append(": ").append(entry.getValue());
+		}
+		Set<String> caches = new TreeSet<String>(cacheHits.keySet());
+		caches.addAll(cacheMisses.keySet());
+		for (String cache : caches) {
+			sb.append("\n  cache ").append(cache).append(": ").append(getCacheHits(cache)).append(" hits, ")
+					.append(getCacheMisses(cache)).append(" misses");
+		}
+		return sb.toString();
+	}
+
+	private static class ResourceCounters implements Serializable {
+		private final LongAdder requests = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+		private final LongAdder nanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private void add(long bytes, long nanos) {
+			requests.increment();
+			this.bytes.add(bytes);
+			this.nanos.add(nanos);
+			max(maxNanos, nanos);
+		}
+	}
+
+	/**
+	 * Statistics of the requests served of one image or width tier.
+	 */
+	public static class ResourceStats implements Serializable {
+		private final long requests;
+		private final long bytes;
+		private final long nanos;
+		private final long maxNanos;
+
+		private ResourceStats(long requests, long bytes, long nanos, long maxNanos) {
+			this.requests = requests;
+			this.bytes = bytes;
+			this.nanos = nanos;
+			this.maxNanos = maxNanos;
+		}
+
+		/**
+		 * Returns the amount of requests served.
+		 *
+		 * @return Amount of requests
+		 */
+		public long getRequestCount() {
+			return requests;
+		}
+
+		/**
+		 * Returns the amount of bytes served.
+		 *
+		 * @return Amount of bytes
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Returns the average time spent serving a request.
+		 *
+		 * @return Time in milliseconds
+		 */
+		public double getAverageTime() {
+			return requests == 0 ? 0 : nanos / 1e6 / requests;
+		}
+
+		/**
+		 * Returns the longest time spent serving a request.
+		 *
+		 * @return Time in milliseconds
+		 */
+		public double getMaxTime() {
+			return maxNanos / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			return requests + " requests, " + bytes + " bytes, avg " + getAverageTime() + " ms, max " + getMaxTime()
+					+ " ms";
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.tepi.imageviewer.rendition;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Rendition held in memory as an encoded byte array.
+ *
+ * @author Teppo Kurki
+ */
+public class ByteArrayRendition implements Rendition {
+
+	private final byte[] data;
+	private final String mimeType;
+
+	public ByteArrayRendition(byte[] data, String mimeType) {
+		this.data = data;
+		this.mimeType = mimeType;
+	}
+
+	@Override
+	public String getMIMEType() {
+		return mimeType;
+	}
+
+	@Override
+	public long getLength() {
+		return data.length;
+	}
+
+	@Override
+	public InputStream getStream() {
+		return new ByteArrayInputStream(data);
+	}
+}
@@ -0,0 +1,447 @@
+package org.tepi.imageviewer.rendition;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.tepi.imageviewer.metrics.ImageViewerMetrics;
+
+import com.vaadin.server.Resource;
+
+/**
+ * RenditionService that stores the renditions produced by another service in
+ * a directory and serves them from there on later requests. The cache is
+ * limited to a number of bytes; when it is exceeded, the least recently used
+ * renditions are deleted. The recency of the renditions is kept in memory and
+ * written to the last modified times of their files when renditions are
+ * evicted and on {@link #flush()}, so the cache survives restarts of the
+ * application.
+ * <p>
+ * A rendition is keyed by the version of its source, the width tier and the
+ * format of the delegate. The version is given by the ImageViewer, see
+ * ImageViewer#getImageVersion; sources without a version are rendered
+ * without caching. One cache instance should be shared by all ImageViewers
+ * using the same directory.
+ *
+ * @author Teppo Kurki
+ */
+@SuppressWarnings("serial")
+public class DiskRenditionCache implements RenditionService {
+
+	/** Extension of the marker files of sources that are served as is */
+	private static final String ORIGINAL = "orig";
+
+	/** Size a marker file is counted as, about one block of the file system */
+	private static final long MARKER_BYTES = 4096;
+
+	/** Types the renditions may be encoded in, for finding other variants */
+	private static final String[] FORMATS = { "image/jpeg", "image/png", "image/gif", "image/webp" };
+
+	/** Returned by lookup for a source that is served as is */
+	private static final Rendition SERVE_ORIGINAL = new ByteArrayRendition(new byte[0], null);
+
+	private final RenditionService delegate;
+	private final File directory;
+	private final long maxBytes;
+
+	private ImageViewerMetrics metrics = ImageViewerMetrics.NONE;
+
+	/* Cached files by key, least recently used first; loaded lazily */
+	private transient Map<String, Entry> index;
+	private transient long totalBytes;
+
+	/* Latest recency written to the files, so later writes order after it */
+	private transient long recencyTime;
+
+	/* Renders in progress by key, so that concurrent misses render only once */
+	private transient ConcurrentMap<String, CountDownLatch> rendering;
+
+	/**
+	 * @param delegate
+	 *            Service producing the renditions that are not cached yet
+	 * @param directory
+	 *            Directory for the cached renditions; created if missing
+	 * @param maxBytes
+	 *            Maximum total size of the cached renditions in bytes
+	 */
+	public DiskRenditionCache(RenditionService delegate, File directory, long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Maximum size must be 0 or over.");
+		}
+		this.delegate = delegate;
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Renders the source without caching, since it has no version.
+	 */
+	@Override
+	public Rendition render(Resource source, int width) throws IOException {
+		return delegate.render(source, width);
+	}
+
+	@Override
+	public Rendition render(Resource source, String version, int width) throws IOException {
+		if (version == null) {
+			return delegate.render(source, version, width);
+		}
+		String variant = version + "|" + width;
+		String format = delegate.getMIMEType(source, width);
+		String key = hash(variant + "|" + format);
+		Rendition cached = lookup(key);
+		if (cached != null) {
+			metrics.cacheHit("rendition");
+			return cached == SERVE_ORIGINAL ? null : cached;
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		CountDownLatch running = rendering().putIfAbsent(key, latch);
+		if (running != null) {
+			/* Wait for the render in progress and serve its result from the cache */
+			try {
+				running.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a rendition");
+			}
+			cached = lookup(key);
+			if (cached != null) {
+				metrics.cacheHit("rendition");
+				return cached == SERVE_ORIGINAL ? null : cached;
+			}
+			/* The rendition did not fit the cache or failed */
+			metrics.cacheMiss("rendition");
+			return delegate.render(source, version, width);
+		}
+		try {
+			/* Stored by a render that finished after the lookup above */
+			cached = lookup(key);
+			if (cached != null) {
+				metrics.cacheHit("rendition");
+				return cached == SERVE_ORIGINAL ? null : cached;
+			}
+			metrics.cacheMiss("rendition");
+			Rendition rendition = delegate.render(source, version, width);
+			Rendition stored = store(key, rendition);
+			if (format != null) {
+				removeOtherFormats(variant, format);
+			}
+			if (stored != null) {
+				rendition.close();
+				return stored;
+			}
+			return rendition;
+		} finally {
+			rendering.remove(key, latch);
+			latch.countDown();
+		}
+	}
+
+	/**
+	 * Returns the type the delegate produces; cached renditions have the same
+	 * type.
+	 */
+	@Override
+	public String getMIMEType(Resource source, int width) {
+		return delegate.getMIMEType(source, width);
+	}
+
+	/**
+	 * Sets the metrics the hits and misses of this cache are recorded to,
+	 * under the cache name "rendition".
+	 *
+	 * @param metrics
+	 *            Metrics, or null to record nothing
+	 */
+	public void setMetrics(ImageViewerMetrics metrics) {
+		this.metrics = metrics != null ? metrics : ImageViewerMetrics.NONE;
+	}
+
+	/**
+	 * Returns the total size of the cached renditions in bytes. Each marker
+	 * of a source served as is counts as {@value #MARKER_BYTES} bytes.
+	 *
+	 * @return Size in bytes
+	 */
+	public synchronized long getSize() {
+		index();
+		return totalBytes;
+	}
+
+	/**
+	 * Writes the recency of the renditions used since the previous write to
+	 * the directory, so that the eviction order is kept over a restart.
+	 * Should be called when the application is stopped.
+	 */
+	public synchronized void flush() {
+		if (index == null) {
+			return;
+		}
+		/*
+		 * Used entries have moved after all unused ones, so giving them times
+		 * after the latest written one in order keeps the order of the whole
+		 * cache
+		 */
+		int used = 0;
+		for (Entry entry : index.values()) {
+			if (entry.used) {
+				used++;
+			}
+		}
+		recencyTime = Math.max(recencyTime, System.currentTimeMillis() - used);
+		for (Entry entry : index.values()) {
+			if (entry.used) {
+				entry.file.setLastModified(++recencyTime);
+				entry.used = false;
+			}
+		}
+	}
+
+	/**
+	 * Deletes all cached renditions. Renditions being served stay readable
+	 * until they have been served.
+	 */
+	public synchronized void clear() {
+		for (Entry entry : index().values()) {
+			entry.file.delete();
+		}
+		index.clear();
+		totalBytes = 0;
+	}
+
+	private synchronized ConcurrentMap<String, CountDownLatch> rendering() {
+		if (rendering == null) {
+			rendering = new ConcurrentHashMap<String, CountDownLatch>();
+		}
+		return rendering;
+	}
+
+	/**
+	 * Returns the index entry of the key, or null if the rendition is not
+	 * cached. Entries of files deleted outside the cache are dropped. Must be
+	 * called while holding the lock of this cache.
+	 */
+	private Entry entry(String key) {
+		Entry entry = index().get(key);
+		if (entry != null && !entry.file.isFile()) {
+			index.remove(key);
+			totalBytes -= entry.size;
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Opens the cached rendition of the key. The file is opened while holding
+	 * the lock, so a concurrent eviction cannot delete it before it is
+	 * served.
+	 *
+	 * @return The opened rendition, {@link #SERVE_ORIGINAL} for a source
+	 *         served as is, or null if the rendition is not cached
+	 */
+	private synchronized Rendition lookup(String key) throws IOException {
+		Entry entry = entry(key);
+		if (entry == null) {
+			return null;
+		}
+		String mimeType = getMIMEType(entry.file);
+		Rendition rendition = SERVE_ORIGINAL;
+		if (mimeType != null) {
+			try {
+				rendition = FileRendition.open(entry.file, mimeType);
+			} catch (NoSuchFileException e) {
+				index.remove(key);
+				totalBytes -= entry.size;
+				return null;
+			}
+		}
+		entry.used = true;
+		return rendition;
+	}
+
+	/**
+	 * Writes the rendition to the cache directory. A source that is served as
+	 * is gets an empty marker file, so its renditions are not attempted again.
+	 * A file stored earlier for the key with another extension is deleted.
+	 *
+	 * @return The cached rendition opened for serving, or null if the
+	 *         rendition does not fit the cache or the source is served as is
+	 */
+	private Rendition store(String key, Rendition rendition) throws IOException {
+		String extension = rendition == null ? ORIGINAL : RenditionResource.getExtension(rendition.getMIMEType());
+		long size = rendition == null ? MARKER_BYTES : rendition.getLength();
+		if (extension == null || size > maxBytes) {
+			return null;
+		}
+		synchronized (this) {
+			index();
+		}
+		File temp = File.createTempFile(key, ".tmp", directory);
+		try {
+			if (rendition != null) {
+				OutputStream out = new FileOutputStream(temp);
+				try {
+					rendition.writeTo(out);
+				} finally {
+					out.close();
+				}
+			}
+			File file = new File(directory, key + "." + extension);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			synchronized (this) {
+				Entry stored = new Entry(file, size);
+				stored.used = true;
+				Entry previous = index.put(key, stored);
+				if (previous != null) {
+					totalBytes -= previous.size;
+					if (!previous.file.equals(file)) {
+						previous.file.delete();
+					}
+				}
+				totalBytes += size;
+				evict();
+				return rendition == null ? null : FileRendition.open(file, rendition.getMIMEType());
+			}
+		} finally {
+			temp.delete();
+		}
+	}
+
+	/**
+	 * Deletes the renditions of the same source and width stored in formats
+	 * other than the given one, e.g. before the delegate changed its format.
+	 */
+	private synchronized void removeOtherFormats(String variant, String format) {
+		for (String other : FORMATS) {
+			if (!other.equals(format)) {
+				Entry entry = index().remove(hash(variant + "|" + other));
+				if (entry != null) {
+					totalBytes -= entry.size;
+					entry.file.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used renditions until the cache fits its
+	 * budget, and writes the recency of the remaining ones if any were
+	 * deleted. Renditions already opened for serving stay readable.
+	 */
+	private void evict() {
+		Iterator<Entry> eldest = index.values().iterator();
+		boolean evicted = false;
+		while (totalBytes > maxBytes && eldest.hasNext()) {
+			Entry entry = eldest.next();
+			totalBytes -= entry.size;
+			entry.file.delete();
+			eldest.remove();
+			evicted = true;
+		}
+		if (evicted) {
+			flush();
+		}
+	}
+
+	/**
+	 * Returns the index of the cached files, reading it from the directory on
+	 * first use. Must be called while holding the lock of this cache.
+	 */
+	private Map<String, Entry> index() {
+		if (index == null) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IllegalStateException("Cannot create rendition cache directory " + directory);
+			}
+			File[] files = directory.listFiles();
+			if (files == null) {
+				throw new IllegalStateException("Cannot read rendition cache directory " + directory);
+			}
+			index = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+			totalBytes = 0;
+			recencyTime = 0;
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File f1, File f2) {
+					return Long.compare(f1.lastModified(), f2.lastModified());
+				}
+			});
+			for (File file : files) {
+				String name = file.getName();
+				int dot = name.lastIndexOf('.');
+				if (dot <= 0 || name.endsWith(".tmp")) {
+					/* Left behind by an interrupted write */
+					file.delete();
+					continue;
+				}
+				long size = getMIMEType(file) == null ? MARKER_BYTES : file.length();
+				recencyTime = Math.max(recencyTime, file.lastModified());
+				Entry previous = index.put(name.substring(0, dot), new Entry(file, size));
+				if (previous != null) {
+					/* Older variant of the key with another extension */
+					totalBytes -= previous.size;
+					previous.file.delete();
+				}
+				totalBytes += size;
+			}
+			evict();
+		}
+		return index;
+	}
+
+	/**
+	 * Returns the MIME type of a cached file, or null for the marker of a
+	 * source served as is.
+	 */
+	private static String getMIMEType(File file) {
+		String name = file.getName();
+		String extension = name.substring(name.lastIndexOf('.') + 1);
+		if ("jpg".equals(extension)) {
+			return "image/jpeg";
+		} else if (ORIGINAL.equals(extension)) {
+			return null;
+		}
+		return "image/" + extension;
+	}
+
+	private static String hash(String key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/** Cached file, the size it is counted as and whether it has been used */
+	private static class Entry {
+		private final File file;
+		private final long size;
+		private boolean used;
+
+		private Entry(File file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+}
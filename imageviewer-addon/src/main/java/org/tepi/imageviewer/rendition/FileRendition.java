@@ -0,0 +1,89 @@
+package org.tepi.imageviewer.rendition;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Rendition stored in a file, e.g. in a {@link DiskRenditionCache}. The bytes
+ * are streamed from the file when the rendition is written, so the rendition
+ * is never held in memory as a whole.
+ * <p>
+ * A rendition created with {@link #open(File, String)} keeps its file open,
+ * so the bytes stay readable even if the file is deleted before they are
+ * served. Such a rendition can be read once, after which it is closed.
+ *
+ * @author Teppo Kurki
+ */
+public class FileRendition implements Rendition {
+
+	private final File file;
+	private final String mimeType;
+
+	/* Channel opened in advance and its size, or null to open the file when read */
+	private final FileChannel channel;
+	private final long length;
+
+	public FileRendition(File file, String mimeType) {
+		this(file, mimeType, null, -1);
+	}
+
+	private FileRendition(File file, String mimeType, FileChannel channel, long length) {
+		this.file = file;
+		this.mimeType = mimeType;
+		this.channel = channel;
+		this.length = length;
+	}
+
+	/**
+	 * Opens the file for reading and returns a rendition that reads the bytes
+	 * through the opened channel.
+	 *
+	 * @param file
+	 *            File of the rendition
+	 * @param mimeType
+	 *            MIME type of the rendition
+	 * @return The opened rendition; must be read or closed
+	 * @throws IOException
+	 *             if the file cannot be opened
+	 */
+	public static FileRendition open(File file, String mimeType) throws IOException {
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			return new FileRendition(file, mimeType, channel, channel.size());
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public String getMIMEType() {
+		return mimeType;
+	}
+
+	@Override
+	public long getLength() {
+		return channel != null ? length : file.length();
+	}
+
+	@Override
+	public InputStream getStream() throws IOException {
+		return channel != null ? Channels.newInputStream(channel) : new FileInputStream(file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package org.tepi.imageviewer.rendition;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import com.vaadin.server.ConnectorResource;
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.FileResource;
+import com.vaadin.server.Resource;
+
+/**
+ * RenditionService that decodes the source images with ImageIO and scales
+ * them with Java2D. JPEG sources are encoded as JPEG and sources of other
+ * types as PNG, which keeps their transparency. Only sources implementing {@link ConnectorResource},
+ * e.g. FileResource, StreamResource and ClassResource, can be rendered; other
+ * resources are served as is.
+ * <p>
+ * Large sources are not decoded in full: the reader subsamples the source to
+ * the smallest size that is still at least twice the requested width, and
+ * tiled sources are read one band of tiles at a time. The memory taken by the
+ * decoded images of all instances is limited by a global budget, see
+ * {@link #setDecodeMemoryBudget(long)}; decodes exceeding the budget wait
+ * until earlier ones finish.
+ *
+ * @author Teppo Kurki
+ */
+@SuppressWarnings("serial")
+public class ImageIORenditionService implements RenditionService {
+
+	/** Budget of decoded image memory in kilobytes, shared by all instances */
+	private static final DecodeBudget decodeBudget = new DecodeBudget(
+			(int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 4 / 1024));
+	private static int decodeBudgetSize = decodeBudget.availablePermits();
+
+	/**
+	 * Sets the maximum amount of memory the decoded images of all rendition
+	 * services may take at the same time. A decode is queued until the memory
+	 * it needs is available; a decode needing more than the whole budget is
+	 * run alone. Default is a quarter of the maximum heap size. Decodes in
+	 * progress keep counting against the budget when it is changed.
+	 *
+	 * @param bytes
+	 *            Budget in bytes, at least 1 MB
+	 */
+	public static synchronized void setDecodeMemoryBudget(long bytes) {
+		if (bytes < 1024 * 1024) {
+			throw new IllegalArgumentException("Decode memory budget must be at least 1 MB.");
+		}
+		int size = (int) Math.min(Integer.MAX_VALUE, bytes / 1024);
+		int delta = size - decodeBudgetSize;
+		if (delta > 0) {
+			decodeBudget.release(delta);
+		} else if (delta < 0) {
+			/* May go negative until the decodes in progress release their memory */
+			decodeBudget.reducePermits(-delta);
+		}
+		decodeBudgetSize = size;
+	}
+
+	/**
+	 * Returns the maximum amount of memory the decoded images may take at the
+	 * same time.
+	 *
+	 * @return Budget in bytes
+	 */
+	public static synchronized long getDecodeMemoryBudget() {
+		return decodeBudgetSize * 1024L;
+	}
+
+	@Override
+	public Rendition render(Resource source, int width) throws IOException {
+		String mimeType = getMIMEType(source, width);
+		return read(source, reader -> render(reader, width, mimeType));
+	}
+
+	/**
+	 * Tells the type of the rendition from the type of the source, so that
+	 * the source does not need to be read. If the source turns out not to be
+	 * wider than the requested width, it is served as is in its own type.
+	 */
+	@Override
+	public String getMIMEType(Resource source, int width) {
+		return "image/jpeg".equals(RenditionResource.getSourceType(source)) ? "image/jpeg" : "image/png";
+	}
+
+	/**
+	 * Opens a reader for the source and passes it to the task. File resources
+	 * are read directly from their file, others through a stream cached by
+	 * ImageIO.
+	 *
+	 * @return Result of the task, or null if the source cannot be read
+	 */
+	private <T> T read(Resource source, ReaderTask<T> task) throws IOException {
+		InputStream stream = null;
+		ImageInputStream in;
+		if (source instanceof FileResource) {
+			in = ImageIO.createImageInputStream(((FileResource) source).getSourceFile());
+		} else {
+			stream = openStream(source);
+			if (stream == null) {
+				return null;
+			}
+			in = ImageIO.createImageInputStream(stream);
+		}
+		try {
+			Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+			if (readers == null || !readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				return task.run(reader);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			if (in != null) {
+				in.close();
+			}
+			if (stream != null) {
+				stream.close();
+			}
+		}
+	}
+
+	private interface ReaderTask<T> {
+		T run(ImageReader reader) throws IOException;
+	}
+
+	private Rendition render(ImageReader reader, int width, String mimeType) throws IOException {
+		int sourceWidth = reader.getWidth(0);
+		int sourceHeight = reader.getHeight(0);
+		if (sourceWidth <= width) {
+			return null;
+		}
+		int subsampling = Math.max(1, sourceWidth / (2 * width));
+		long memory = estimateMemory((sourceWidth + subsampling - 1) / subsampling,
+				(sourceHeight + subsampling - 1) / subsampling);
+
+		int permits = acquireDecodeMemory(memory);
+		try {
+			return encode(scale(decode(reader, subsampling), width), mimeType);
+		} finally {
+			decodeBudget.release(permits);
+		}
+	}
+
+	/**
+	 * Waits until the given amount of decode memory is available and takes
+	 * it from the budget. A decode needing more than the whole budget takes
+	 * the whole budget; the need is capped again if the budget is reduced
+	 * while waiting.
+	 *
+	 * @return Amount of permits taken, to be released after the decode
+	 */
+	private static int acquireDecodeMemory(long memory) throws IOException {
+		try {
+			while (true) {
+				int permits;
+				synchronized (ImageIORenditionService.class) {
+					permits = (int) Math.min(decodeBudgetSize, memory / 1024 + 1);
+				}
+				if (decodeBudget.tryAcquire(permits, 1, TimeUnit.SECONDS)) {
+					return permits;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for decode memory");
+		}
+	}
+
+	/**
+	 * Returns an estimate of the memory needed for decoding and scaling an
+	 * image of the given decoded size: the decoded image and the halving
+	 * steps of {@link #scale(BufferedImage, int)}, at four bytes per pixel.
+	 */
+	protected long estimateMemory(int decodedWidth, int decodedHeight) {
+		return decodedWidth * (long) decodedHeight * 4 * 3 / 2;
+	}
+
+	/**
+	 * Decodes the first image of the reader, taking every
+	 * <code>subsampling</code>th pixel in both directions. Tiled images are
+	 * read one row of tiles at a time into the decoded image, which keeps the
+	 * working memory of the reader at the size of a band.
+	 */
+	protected BufferedImage decode(ImageReader reader, int subsampling) throws IOException {
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+		int sourceWidth = reader.getWidth(0);
+		int sourceHeight = reader.getHeight(0);
+		if (!reader.isImageTiled(0) || reader.getTileHeight(0) >= sourceHeight) {
+			return reader.read(0, param);
+		}
+		/* Bands start at multiples of the subsampling so they join seamlessly */
+		int bandHeight = Math.max(1, reader.getTileHeight(0) / subsampling) * subsampling;
+		BufferedImage image = null;
+		for (int y = 0; y < sourceHeight; y += bandHeight) {
+			param.setSourceRegion(new Rectangle(0, y, sourceWidth, Math.min(bandHeight, sourceHeight - y)));
+			if (image == null) {
+				BufferedImage band = reader.read(0, param);
+				image = new BufferedImage(band.getColorModel(),
+						band.getRaster().createCompatibleWritableRaster(
+								(sourceWidth + subsampling - 1) / subsampling,
+								(sourceHeight + subsampling - 1) / subsampling),
+						band.isAlphaPremultiplied(), null);
+				image.getRaster().setRect(band.getRaster());
+			} else {
+				param.setDestination(image);
+				param.setDestinationOffset(new Point(0, y / subsampling));
+				reader.read(0, param);
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * Opens a stream for reading the bytes of a source image.
+	 *
+	 * @param source
+	 *            The source image
+	 * @return Stream of the source image, or null if the resource is not
+	 *         served by the application
+	 */
+	public static InputStream openStream(Resource source) {
+		if (!(source instanceof ConnectorResource)) {
+			return null;
+		}
+		DownloadStream stream = ((ConnectorResource) source).getStream();
+		return stream == null ? null : stream.getStream();
+	}
+
+	/**
+	 * Scales the image to the given width. The image is halved in steps
+	 * before the final bilinear scaling, which keeps the quality close to a
+	 * bicubic downscale at a fraction of the cost.
+	 */
+	protected BufferedImage scale(BufferedImage image, int width) {
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		int height = Math.max(1, (int) Math.round((double) image.getHeight() * width / image.getWidth()));
+		BufferedImage scaled = image;
+		int w = image.getWidth();
+		int h = image.getHeight();
+		do {
+			w = Math.max(width, w / 2);
+			h = Math.max(height, h / 2);
+			BufferedImage step = new BufferedImage(w, h, type);
+			Graphics2D g = step.createGraphics();
+			g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g.drawImage(scaled, 0, 0, w, h, null);
+			g.dispose();
+			scaled = step;
+		} while (w != width || h != height);
+		return scaled;
+	}
+
+	/**
+	 * Encodes the scaled image in the given type, "image/jpeg" or "image/png".
+	 * Transparency is dropped from images encoded as JPEG.
+	 */
+	protected Rendition encode(BufferedImage image, String mimeType) throws IOException {
+		boolean jpeg = "image/jpeg".equals(mimeType);
+		if (jpeg && image.getColorModel().hasAlpha()) {
+			BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = opaque.createGraphics();
+			g.drawImage(image, 0, 0, Color.WHITE, null);
+			g.dispose();
+			image = opaque;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, jpeg ? "jpeg" : "png", out);
+		return new ByteArrayRendition(out.toByteArray(), jpeg ? "image/jpeg" : "image/png");
+	}
+
+	/**
+	 * Fair semaphore whose permits can be reduced when the budget shrinks.
+	 */
+	private static class DecodeBudget extends Semaphore {
+
+		private DecodeBudget(int permits) {
+			super(permits, true);
+		}
+
+		@Override
+		protected void reducePermits(int reduction) {
+			super.reducePermits(reduction);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.tepi.imageviewer.rendition;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Rendition is a generated variant of a source image, e.g. the image scaled to
+ * one of the width tiers of an ImageViewer. A rendition that is not served
+ * should be closed, since it may hold an open file.
+ *
+ * @author Teppo Kurki
+ */
+public interface Rendition extends Closeable {
+
+	/**
+	 * Returns the MIME type of the rendition, e.g. "image/jpeg".
+	 *
+	 * @return MIME type
+	 */
+	public String getMIMEType();
+
+	/**
+	 * Returns the size of the rendition in bytes.
+	 *
+	 * @return Size in bytes
+	 */
+	public long getLength();
+
+	/**
+	 * Opens a stream for reading the bytes of the rendition.
+	 *
+	 * @return Stream of the encoded image
+	 * @throws IOException
+	 *             if the rendition cannot be read
+	 */
+	public InputStream getStream() throws IOException;
+
+	/**
+	 * Writes the bytes of the rendition to the given stream. The default
+	 * implementation copies the stream of the rendition through a buffer.
+	 *
+	 * @param out
+	 *            Stream to write to; not closed
+	 * @throws IOException
+	 *             if the rendition cannot be read or written
+	 */
+	public default void writeTo(OutputStream out) throws IOException {
+		InputStream in = getStream();
+		try {
+			byte[] buffer = new byte[32 * 1024];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Releases the resources held by the rendition. The default
+	 * implementation does nothing.
+	 *
+	 * @throws IOException
+	 *             if the resources cannot be released
+	 */
+	@Override
+	public default void close() throws IOException {
+	}
+}
@@ -0,0 +1,331 @@
+package org.tepi.imageviewer.rendition;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.ConnectorResource;
+import com.vaadin.server.Resource;
+
+/**
+ * RenditionPregenerator renders the width tiers of a set of images in the
+ * background, so that a later request for a rendition is served from the
+ * cache of the rendition service instead of rendering it on the request
+ * thread. Pregeneration is only useful with a caching service, such as a
+ * {@link DiskRenditionCache}.
+ * <p>
+ * The images of a job are rendered in the order of their distance from the
+ * given center image, alternating between the following and the preceding
+ * images and wrapping around the ends of the list in the same way as an
+ * ImageViewer does. Each job runs on at most the given amount of worker
+ * threads. One pregenerator is intended to be shared by all ImageViewers of
+ * the application, and {@link #shutdown()} should be called when the
+ * application is stopped.
+ *
+ * @author Teppo Kurki
+ */
+public class RenditionPregenerator {
+
+	private static final Logger LOGGER = Logger.getLogger(RenditionPregenerator.class.getName());
+
+	private final ExecutorService executor;
+	private final int parallelism;
+
+	private final AtomicLong rendered = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong renderTime = new AtomicLong();
+
+	/**
+	 * Creates a pregenerator with its own pool of daemon worker threads.
+	 *
+	 * @param threads
+	 *            Amount of worker threads, at least 1
+	 */
+	public RenditionPregenerator(int threads) {
+		this(Executors.newFixedThreadPool(checkParallelism(threads), new WorkerThreadFactory()), threads);
+	}
+
+	/**
+	 * Creates a pregenerator running its jobs on the given executor.
+	 *
+	 * @param executor
+	 *            Executor to run the jobs on
+	 * @param parallelism
+	 *            Maximum amount of tasks each job runs on the executor at the
+	 *            same time, at least 1
+	 */
+	public RenditionPregenerator(ExecutorService executor, int parallelism) {
+		this.executor = executor;
+		this.parallelism = checkParallelism(parallelism);
+	}
+
+	private static int checkParallelism(int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1.");
+		}
+		return parallelism;
+	}
+
+	/**
+	 * Starts rendering the given images in the given width tiers. Images that
+	 * are not {@link ConnectorResource}s are skipped, since they are not
+	 * served through the rendition service.
+	 *
+	 * @param service
+	 *            Service producing the renditions
+	 * @param images
+	 *            The images; copied, so the list may change afterwards
+	 * @param versions
+	 *            Function returning the version of an image passed to the
+	 *            service, see ImageViewer#getImageVersion; called for each
+	 *            image before this method returns
+	 * @param centerIndex
+	 *            Index of the image to start from
+	 * @param widths
+	 *            Widths of the tiers to render
+	 * @param listener
+	 *            Listener notified of the progress of the job, or null
+	 * @return The started job
+	 */
+	public Job submit(RenditionService service, List<? extends Resource> images,
+			Function<? super ConnectorResource, String> versions, int centerIndex, int[] widths,
+			ProgressListener listener) {
+		List<Task> tasks = new ArrayList<Task>();
+		int count = images.size();
+		for (int i = 0; i < count; i++) {
+			/* 0, +1, -1, +2, -2, ... around the center */
+			int distance = (i + 1) / 2;
+			int index = ((centerIndex + (i % 2 == 1 ? distance : -distance)) % count + count) % count;
+			Resource image = images.get(index);
+			if (image instanceof ConnectorResource) {
+				String version = versions.apply((ConnectorResource) image);
+				for (int width : widths) {
+					tasks.add(new Task(image, version, width));
+				}
+			}
+		}
+		Job job = new Job(service, tasks, listener);
+		for (int i = 0; i < Math.min(parallelism, tasks.size()); i++) {
+			executor.execute(job);
+		}
+		if (tasks.isEmpty()) {
+			job.finish();
+		}
+		return job;
+	}
+
+	/**
+	 * Returns the amount of renditions rendered by all jobs.
+	 *
+	 * @return Amount of renditions
+	 */
+	public long getRenderedCount() {
+		return rendered.get();
+	}
+
+	/**
+	 * Returns the amount of renditions that failed to render in all jobs.
+	 *
+	 * @return Amount of failures
+	 */
+	public long getFailedCount() {
+		return failed.get();
+	}
+
+	/**
+	 * Returns the total time spent rendering by all jobs, summed over the
+	 * worker threads.
+	 *
+	 * @return Time in milliseconds
+	 */
+	public long getRenderTime() {
+		return renderTime.get() / 1000000;
+	}
+
+	/**
+	 * Stops the worker threads. Running renditions are interrupted and queued
+	 * jobs are discarded.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Listener notified of the progress of a job. The listener is called on a
+	 * worker thread without the session lock; use
+	 * {@link com.vaadin.ui.UI#access(Runnable)} to update the UI.
+	 */
+	public interface ProgressListener {
+
+		/**
+		 * Called after each rendition of the job has been rendered or has
+		 * failed, and once more when the job is done or cancelled.
+		 *
+		 * @param job
+		 *            The job
+		 */
+		public void progressed(Job job);
+	}
+
+	private static class Task {
+		private final Resource source;
+		private final String version;
+		private final int width;
+
+		private Task(Resource source, String version, int width) {
+			this.source = source;
+			this.version = version;
+			this.width = width;
+		}
+	}
+
+	/**
+	 * A set of renditions being rendered in the background.
+	 */
+	public class Job implements Runnable {
+
+		private final RenditionService service;
+		private final List<Task> tasks;
+		private final ProgressListener listener;
+		private final long startTime = System.currentTimeMillis();
+
+		private final AtomicInteger next = new AtomicInteger();
+		private final AtomicInteger completed = new AtomicInteger();
+		private final AtomicInteger failures = new AtomicInteger();
+		private volatile boolean cancelled;
+		private volatile long endTime;
+
+		private Job(RenditionService service, List<Task> tasks, ProgressListener listener) {
+			this.service = service;
+			this.tasks = tasks;
+			this.listener = listener;
+		}
+
+		@Override
+		public void run() {
+			int index;
+			while (!cancelled && (index = next.getAndIncrement()) < tasks.size()) {
+				Task task = tasks.get(index);
+				long start = System.nanoTime();
+				try {
+					Rendition rendition = service.render(task.source, task.version, task.width);
+					if (rendition != null) {
+						rendition.close();
+					}
+					rendered.incrementAndGet();
+				} catch (IOException | RuntimeException e) {
+					failures.incrementAndGet();
+					failed.incrementAndGet();
+					LOGGER.log(Level.FINE, "Pregenerating width " + task.width + " failed", e);
+				}
+				renderTime.addAndGet(System.nanoTime() - start);
+				if (completed.incrementAndGet() == tasks.size()) {
+					finish();
+				} else {
+					notifyListener();
+				}
+			}
+		}
+
+		private void finish() {
+			synchronized (this) {
+				if (endTime != 0) {
+					return;
+				}
+				endTime = System.currentTimeMillis();
+			}
+			notifyListener();
+		}
+
+		private void notifyListener() {
+			if (listener != null) {
+				try {
+					listener.progressed(this);
+				} catch (RuntimeException e) {
+					LOGGER.log(Level.WARNING, "Pregeneration progress listener failed", e);
+				}
+			}
+		}
+
+		/**
+		 * Cancels the job. Renditions already being rendered are finished,
+		 * but no new ones are started.
+		 */
+		public void cancel() {
+			if (!cancelled && !isDone()) {
+				cancelled = true;
+				finish();
+			}
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		/**
+		 * Returns true if all renditions of the job have been rendered or the
+		 * job has been cancelled.
+		 *
+		 * @return true if done
+		 */
+		public boolean isDone() {
+			return endTime != 0;
+		}
+
+		/**
+		 * Returns the amount of renditions in the job.
+		 *
+		 * @return Amount of renditions
+		 */
+		public int getTotal() {
+			return tasks.size();
+		}
+
+		/**
+		 * Returns the amount of renditions rendered or failed so far.
+		 *
+		 * @return Amount of renditions
+		 */
+		public int getCompleted() {
+			return completed.get();
+		}
+
+		/**
+		 * Returns the amount of renditions that failed to render.
+		 *
+		 * @return Amount of failures
+		 */
+		public int getFailed() {
+			return failures.get();
+		}
+
+		/**
+		 * Returns the time the job has been running, or ran until it was done.
+		 *
+		 * @return Time in milliseconds
+		 */
+		public long getElapsedTime() {
+			return (isDone() ? endTime : System.currentTimeMillis()) - startTime;
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "imageviewer-pregenerator-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,212 @@
+package org.tepi.imageviewer.rendition;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.ConnectorResource;
+import com.vaadin.server.DownloadStream;
+import com.vaadin.server.Resource;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinResponse;
+
+/**
+ * Resource serving one width tier of an image. The rendition is produced by a
+ * {@link RenditionService} when the resource is requested. If the service
+ * does not produce a rendition, the source image is served as is.
+ *
+ * @author Teppo Kurki
+ */
+@SuppressWarnings("serial")
+public class RenditionResource implements ConnectorResource {
+
+	private final RenditionService service;
+	private final ConnectorResource source;
+	private final String sourceVersion;
+	private final int width;
+
+	/* Type of the rendition, resolved from the service on first use */
+	private transient String renditionType;
+	private transient boolean renditionTypeResolved;
+
+	/**
+	 * @param service
+	 *            Service producing the rendition
+	 * @param source
+	 *            The source image
+	 * @param width
+	 *            Width tier of the rendition in pixels
+	 */
+	public RenditionResource(RenditionService service, ConnectorResource source, int width) {
+		this(service, source, null, width);
+	}
+
+	/**
+	 * @param service
+	 *            Service producing the rendition
+	 * @param source
+	 *            The source image
+	 * @param sourceVersion
+	 *            Version identifying the content of the source, or null if
+	 *            not known
+	 * @param width
+	 *            Width tier of the rendition in pixels
+	 */
+	public RenditionResource(RenditionService service, ConnectorResource source, String sourceVersion, int width) {
+		this.service = service;
+		this.source = source;
+		this.sourceVersion = sourceVersion;
+		this.width = width;
+	}
+
+	public ConnectorResource getSource() {
+		return source;
+	}
+
+	public String getSourceVersion() {
+		return sourceVersion;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Returns the type of the rendition, or the type of the source if it is
+	 * served as is.
+	 */
+	@Override
+	public String getMIMEType() {
+		String type = getRenditionType();
+		return type != null ? type : getSourceType(source);
+	}
+
+	/**
+	 * Returns the file name of the source prefixed with the width, with the
+	 * extension of the rendition's type if it differs from the source's. A
+	 * source without a file name gives the width and the extension.
+	 */
+	@Override
+	public String getFilename() {
+		return getFilename(getRenditionType());
+	}
+
+	private String getFilename(String type) {
+		String name = source.getFilename();
+		String extension = getExtension(type != null ? type : getSourceType(source));
+		if (name == null) {
+			return extension != null ? width + "." + extension : String.valueOf(width);
+		}
+		if (type != null && extension != null && !type.equals(getSourceType(source))) {
+			int dot = name.lastIndexOf('.');
+			name = (dot > 0 ? name.substring(0, dot) : name) + "." + extension;
+		}
+		return width + "-" + name;
+	}
+
+	private String getRenditionType() {
+		if (!renditionTypeResolved) {
+			renditionType = service.getMIMEType(source, width);
+			renditionTypeResolved = true;
+		}
+		return renditionType;
+	}
+
+	/**
+	 * Returns the MIME type of a source image, or null if it is not known. The
+	 * type of a stream resource without a file name cannot be resolved.
+	 */
+	static String getSourceType(Resource source) {
+		if (source instanceof ConnectorResource && ((ConnectorResource) source).getFilename() == null) {
+			return null;
+		}
+		return source.getMIMEType();
+	}
+
+	/**
+	 * Returns the file extension of an image type produced by the rendition
+	 * services, or null if the type is not known.
+	 */
+	static String getExtension(String mimeType) {
+		if ("image/jpeg".equals(mimeType)) {
+			return "jpg";
+		} else if ("image/png".equals(mimeType)) {
+			return "png";
+		} else if ("image/gif".equals(mimeType)) {
+			return "gif";
+		} else if ("image/webp".equals(mimeType)) {
+			return "webp";
+		}
+		return null;
+	}
+
+	@Override
+	public DownloadStream getStream() {
+		try {
+			Rendition rendition = service.render(source, sourceVersion, width);
+			if (rendition != null) {
+				DownloadStream stream = new RenditionStream(rendition, getFilename(rendition.getMIMEType()));
+				stream.setParameter("Content-Length", String.valueOf(rendition.getLength()));
+				return stream;
+			}
+		} catch (IOException e) {
+			Logger.getLogger(RenditionResource.class.getName()).log(Level.WARNING,
+					"Rendering " + source.getFilename() + " to width " + width + " failed, serving the original", e);
+		}
+		return source.getStream();
+	}
+
+	/**
+	 * DownloadStream writing the body through {@link Rendition#writeTo} and
+	 * closing the rendition once it has been written. The bytes are streamed
+	 * through a buffer, since the servlet API has no portable way of sending
+	 * a file without copying it.
+	 */
+	private static class RenditionStream extends DownloadStream {
+
+		private final Rendition rendition;
+
+		RenditionStream(Rendition rendition, String fileName) {
+			super(null, rendition.getMIMEType(), fileName);
+			this.rendition = rendition;
+		}
+
+		@Override
+		public InputStream getStream() {
+			try {
+				return rendition.getStream();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void writeResponse(VaadinRequest request, VaadinResponse response) throws IOException {
+			if (getParameter("Location") != null) {
+				super.writeResponse(request, response);
+				return;
+			}
+			response.setContentType(getContentType() == null ? "application/octet-stream" : getContentType());
+			response.setCacheTime(getCacheTime());
+			Iterator<String> names = getParameterNames();
+			while (names != null && names.hasNext()) {
+				String name = names.next();
+				response.setHeader(name, getParameter(name));
+			}
+			if (getParameter(CONTENT_DISPOSITION) == null && getFileName() != null) {
+				response.setHeader(CONTENT_DISPOSITION, getContentDispositionFilename(getFileName()));
+			}
+			OutputStream out = response.getOutputStream();
+			try {
+				rendition.writeTo(out);
+			} finally {
+				rendition.close();
+				out.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,72 @@
+package org.tepi.imageviewer.rendition;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import com.vaadin.server.Resource;
+
+/**
+ * RenditionService produces scaled renditions of the images of an
+ * ImageViewer. When a service is set to an ImageViewer, each image is
+ * registered in a set of width tiers and the client loads the smallest tier
+ * that covers the pixel width of the slot showing the image.
+ *
+ * @author Teppo Kurki
+ */
+public interface RenditionService extends Serializable {
+
+	/**
+	 * Renders the source image scaled to the given width, preserving its
+	 * aspect ratio.
+	 *
+	 * @param source
+	 *            The source image
+	 * @param width
+	 *            Width of the rendition in pixels
+	 * @return The rendition, or null if the source should be served as is,
+	 *         e.g. because it is not wider than the requested width or its
+	 *         bytes are not available on the server
+	 * @throws IOException
+	 *             if the source cannot be read or the rendition cannot be
+	 *             encoded
+	 */
+	public Rendition render(Resource source, int width) throws IOException;
+
+	/**
+	 * Renders the source image like {@link #render(Resource, int)}, given a
+	 * version identifying the content of the source, see
+	 * ImageViewer#getImageVersion. Services caching the renditions key them
+	 * by the version. The default implementation ignores the version.
+	 *
+	 * @param source
+	 *            The source image
+	 * @param version
+	 *            Version of the source, or null if not known
+	 * @param width
+	 *            Width of the rendition in pixels
+	 * @return The rendition, or null if the source should be served as is
+	 * @throws IOException
+	 *             if the source cannot be read or the rendition cannot be
+	 *             encoded
+	 */
+	public default Rendition render(Resource source, String version, int width) throws IOException {
+		return render(source, width);
+	}
+
+	/**
+	 * Returns the MIME type the rendition of the source image in the given
+	 * width will have, without rendering it. Used for the file name and type
+	 * of the resource before the rendition is requested. This is called while
+	 * the session is locked, so it should not read the source.
+	 *
+	 * @param source
+	 *            The source image
+	 * @param width
+	 *            Width of the rendition in pixels
+	 * @return MIME type of the rendition, or null if the source is served as
+	 *         is or the type cannot be told in advance
+	 */
+	public default String getMIMEType(Resource source, int width) {
+		return null;
+	}
+}
@@ -6,7 +6,6 @@ import java.util.List;
 import javax.servlet.annotation.WebServlet;
 
 import org.tepi.imageviewer.ImageViewer;
-import org.tepi.imageviewer.ImageViewer.ImageSelectionListener;
 
 import com.vaadin.annotations.Theme;
 import com.vaadin.annotations.Title;
@@ -59,7 +58,7 @@ public class ImageViewerDemoUI extends UI {
 		imageViewer.setAnimationEnabled(false);
 		imageViewer.setSideImageRelativeWidth(0.7f);
 
-		imageViewer.addListener((ImageSelectionListener) e -> {
+		imageViewer.addImageSelectionListener(e -> {
 			selectedImage.setValue(e.getSelectedImageIndex() >= 0 ? String.valueOf(e.getSelectedImageIndex()) : "-");
 		});
 		HorizontalLayout hl = new HorizontalLayout();